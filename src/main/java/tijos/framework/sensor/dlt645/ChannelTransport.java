@@ -0,0 +1,353 @@
+package tijos.framework.sensor.dlt645;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Transport over java.nio byte channels, such as a SocketChannel to a
+ * transparent serial server or the two ends of a Pipe. Selectable channels are
+ * switched to non-blocking mode so that available() never blocks, a wait for
+ * received bytes parks on a selector of the channel. A write the channel does
+ * not accept at once parks on a selector until the channel is writable.
+ *
+ * A transport registered with a DLT645Reactor never blocks on write, the bytes
+ * the channel could not accept are kept until the reactor finds it writable.
+ *
+ * @author TiJOS
+ */
+public class ChannelTransport implements IDLT645Transport {
+
+	private static final int TX_CAPACITY = 4096; // send buffer when served by a reactor
+	private static final int WRITE_WAIT = 100; // max wait in ms for the send channel to drain
+
+	private final ReadableByteChannel in;
+	private final WritableByteChannel out;
+
+	// bytes read from the channel but not consumed yet
+	private final ByteBuffer rxBuffer = ByteBuffer.allocate(512);
+
+	private boolean eof = false;
+
+	// selector of the receive channel, opened on the first wait
+	private Selector selector;
+
+	// selector of the send channel, opened on the first write not accepted
+	private Selector writeSelector;
+
+	private volatile boolean wakeup = false;
+
+	// bytes the channel has not accepted yet, only when served by a reactor
+	private volatile ByteBuffer txBuffer;
+
+	// reactor serving the transport
+	volatile DLT645Reactor.Link link;
+
+	/**
+	 * Initialize with a bidirectional channel
+	 *
+	 * @param channel
+	 * @throws IOException
+	 */
+	public ChannelTransport(ByteChannel channel) throws IOException {
+		this(channel, channel);
+	}
+
+	/**
+	 * Initialize with separate receive and send channels
+	 *
+	 * @param in  receive channel
+	 * @param out send channel
+	 * @throws IOException
+	 */
+	public ChannelTransport(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		this.in = in;
+		this.out = out;
+
+		if (in instanceof SelectableChannel) {
+			((SelectableChannel) in).configureBlocking(false);
+		}
+
+		rxBuffer.flip();
+	}
+
+	@Override
+	public synchronized int available() throws IOException {
+		fill();
+		return rxBuffer.remaining();
+	}
+
+	@Override
+	public int available(int timeOut) throws IOException {
+		long deadline = System.currentTimeMillis() + timeOut;
+
+		while (true) {
+			int avail = available();
+			if (avail > 0 || eof || wakeup) {
+				wakeup = false;
+				return avail;
+			}
+
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0)
+				return 0;
+
+			if (in instanceof SelectableChannel) {
+				Selector s = selector();
+				if (!wakeup) {
+					s.select(left);
+					s.selectedKeys().clear();
+				}
+			} else {
+				try {
+					Thread.sleep(Math.min(left, 1));
+				} catch (InterruptedException e) {
+					throw new IOException("channel wait interrupted");
+				}
+			}
+		}
+	}
+
+	@Override
+	public void wakeup() {
+		DLT645Reactor.Link l = link;
+		if (l != null) {
+			l.wakeup();
+			return;
+		}
+
+		wakeup = true;
+
+		Selector s;
+		synchronized (this) {
+			s = selector;
+		}
+
+		if (s != null) {
+			s.wakeup();
+		}
+	}
+
+	@Override
+	public synchronized int read(byte[] buffer, int off, int len) throws IOException {
+		if (!rxBuffer.hasRemaining()) {
+			fill();
+		}
+
+		int count = Math.min(len, rxBuffer.remaining());
+		rxBuffer.get(buffer, off, count);
+		return count;
+	}
+
+	@Override
+	public void write(byte[] buffer, int off, int len) throws IOException {
+		ByteBuffer tx = txBuffer;
+		if (tx != null) {
+			boolean pending;
+			synchronized (tx) {
+				if (tx.remaining() < len)
+					throw new IOException("channel send buffer full");
+
+				tx.put(buffer, off, len);
+				pending = drain(tx);
+			}
+
+			// the reactor writes the rest once the channel is writable
+			if (pending) {
+				wakeup();
+			}
+			return;
+		}
+
+		ByteBuffer src = ByteBuffer.wrap(buffer, off, len);
+		while (src.hasRemaining()) {
+			if (out.write(src) == 0) {
+				awaitWritable();
+			}
+		}
+	}
+
+	@Override
+	public void setBaudRate(int baudRate) throws IOException {
+		// the serial port is on the other side of the channel
+		throw new IOException("baud rate is not supported by channel transport");
+	}
+
+	@Override
+	public synchronized void clear() throws IOException {
+		do {
+			rxBuffer.position(rxBuffer.limit());
+			fill();
+		} while (rxBuffer.hasRemaining());
+	}
+
+	@Override
+	public void close() throws IOException {
+		Selector s;
+		Selector ws;
+		synchronized (this) {
+			s = selector;
+			selector = null;
+			ws = writeSelector;
+			writeSelector = null;
+		}
+
+		if (s != null) {
+			s.close();
+		}
+		if (ws != null) {
+			ws.close();
+		}
+
+		in.close();
+		if (out != in) {
+			out.close();
+		}
+	}
+
+	/**
+	 * Receive channel
+	 *
+	 * @return
+	 */
+	ReadableByteChannel getReadChannel() {
+		return in;
+	}
+
+	/**
+	 * Send channel
+	 *
+	 * @return
+	 */
+	WritableByteChannel getWriteChannel() {
+		return out;
+	}
+
+	/**
+	 * Served by the reactor, writes no longer block
+	 *
+	 * @param link
+	 * @throws IOException
+	 */
+	void attach(DLT645Reactor.Link link) throws IOException {
+		if (out instanceof SelectableChannel) {
+			((SelectableChannel) out).configureBlocking(false);
+
+			ByteBuffer tx = ByteBuffer.allocate(TX_CAPACITY);
+			txBuffer = tx;
+		}
+
+		this.link = link;
+	}
+
+	/**
+	 * No longer served by the reactor, the bytes not sent are dropped
+	 */
+	void detach() {
+		this.link = null;
+		this.txBuffer = null;
+	}
+
+	/**
+	 * Write the bytes kept for the channel
+	 *
+	 * @return true if some are still not accepted by the channel
+	 * @throws IOException
+	 */
+	boolean flushPending() throws IOException {
+		ByteBuffer tx = txBuffer;
+		if (tx == null)
+			return false;
+
+		synchronized (tx) {
+			return drain(tx);
+		}
+	}
+
+	/**
+	 * Write what the channel accepts from the buffer
+	 *
+	 * @param tx buffer in put mode
+	 * @return true if some bytes are left
+	 * @throws IOException
+	 */
+	private boolean drain(ByteBuffer tx) throws IOException {
+		if (tx.position() == 0)
+			return false;
+
+		tx.flip();
+		try {
+			out.write(tx);
+			return tx.hasRemaining();
+		} finally {
+			tx.compact();
+		}
+	}
+
+	/**
+	 * Selector with the receive channel registered for read
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	private synchronized Selector selector() throws IOException {
+		if (selector == null) {
+			selector = Selector.open();
+			((SelectableChannel) in).register(selector, SelectionKey.OP_READ);
+		}
+		return selector;
+	}
+
+	/**
+	 * Wait until the send channel could accept bytes, a non-blocking channel
+	 * parks on a selector instead of spinning
+	 *
+	 * @throws IOException
+	 */
+	private void awaitWritable() throws IOException {
+		if (!(out instanceof SelectableChannel)) {
+			Thread.yield();
+			return;
+		}
+
+		Selector s;
+		synchronized (this) {
+			if (writeSelector == null) {
+				writeSelector = Selector.open();
+				((SelectableChannel) out).register(writeSelector, SelectionKey.OP_WRITE);
+			}
+			s = writeSelector;
+		}
+
+		s.select(WRITE_WAIT);
+		s.selectedKeys().clear();
+	}
+
+	/**
+	 * Read what the channel has into the receive buffer
+	 *
+	 * @throws IOException
+	 */
+	private void fill() throws IOException {
+		if (eof) {
+			if (!rxBuffer.hasRemaining())
+				throw new EOFException("channel closed");
+			return;
+		}
+
+		rxBuffer.compact();
+		try {
+			if (in.read(rxBuffer) < 0) {
+				eof = true;
+			}
+		} finally {
+			rxBuffer.flip();
+		}
+	}
+}
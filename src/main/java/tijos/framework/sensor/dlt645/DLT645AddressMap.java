@@ -0,0 +1,112 @@
+package tijos.framework.sensor.dlt645;
+
+/**
+ * Open addressing map from the address key of a meter to its entry, used by the
+ * tables kept for each meter on the bus. Entries are never removed. The map is
+ * not synchronized, its owner guards it.
+ *
+ * @author TiJOS
+ */
+class DLT645AddressMap<E> {
+
+	// hash slots, null value for empty
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int count = 0;
+
+	/**
+	 * Initialize with the expected number of meters
+	 *
+	 * @param capacity
+	 */
+	DLT645AddressMap(int capacity) {
+		int size = 4;
+		while (size < capacity * 2) {
+			size <<= 1;
+		}
+
+		keys = new long[size];
+		values = new Object[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Entry of the meter
+	 *
+	 * @param key address key of the meter, see DLT645Frame.addressKey
+	 * @return entry or null if the meter has none
+	 */
+	@SuppressWarnings("unchecked")
+	E get(long key) {
+		int slot = hash(key) & mask;
+		while (true) {
+			Object value = values[slot];
+			if (value == null || keys[slot] == key)
+				return (E) value;
+
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Set the entry of the meter
+	 *
+	 * @param key   address key of the meter
+	 * @param value entry, not null
+	 */
+	void put(long key, E value) {
+		int slot = hash(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		keys[slot] = key;
+		values[slot] = value;
+		count++;
+
+		if (count * 2 > values.length) {
+			rehash(values.length * 2);
+		}
+	}
+
+	/**
+	 * Number of meters with an entry
+	 *
+	 * @return
+	 */
+	int size() {
+		return count;
+	}
+
+	private void rehash(int size) {
+		long[] k = new long[size];
+		Object[] v = new Object[size];
+		int m = size - 1;
+
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == null)
+				continue;
+
+			int slot = hash(keys[i]) & m;
+			while (v[slot] != null) {
+				slot = (slot + 1) & m;
+			}
+			k[slot] = keys[i];
+			v[slot] = values[i];
+		}
+
+		keys = k;
+		values = v;
+		mask = m;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
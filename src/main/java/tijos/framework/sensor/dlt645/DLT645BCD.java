@@ -0,0 +1,131 @@
+package tijos.framework.sensor.dlt645;
+
+/**
+ * Table driven BCD decoder for DLT645 data fields. Fields are little endian
+ * BCD, the result is a scaled long (fixed-point) and is converted to double
+ * only on request.
+ *
+ * @author TiJOS
+ */
+public class DLT645BCD {
+
+	/**
+	 * Returned when a nibble is greater than 9 or the field is too long
+	 */
+	public static final long INVALID = Long.MIN_VALUE;
+
+	// max bytes fits in a long, 18 digits
+	private static final int MAX_LEN = 9;
+
+	// byte to decimal 0 - 99, -1 for invalid nibble
+	private static final byte[] BCD_TABLE = new byte[256];
+
+	private static final long[] POW10 = new long[MAX_LEN * 2 + 1];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int hi = i >>> 4;
+			int lo = i & 0x0F;
+			BCD_TABLE[i] = (byte) ((hi > 9 || lo > 9) ? -1 : hi * 10 + lo);
+		}
+
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++) {
+			POW10[i] = POW10[i - 1] * 10;
+		}
+	}
+
+	/**
+	 * Decode unsigned BCD field
+	 *
+	 * @param input buffer
+	 * @param start start position
+	 * @param len   field length in bytes
+	 * @return scaled value or INVALID
+	 */
+	public static long decode(byte[] input, int start, int len) {
+		return decode(input, start, len, 0);
+	}
+
+	/**
+	 * Decode unsigned BCD field with an offset added to each byte, such as the
+	 * 0x33 of the data area of a frame
+	 *
+	 * @param input  buffer
+	 * @param start  start position
+	 * @param len    field length in bytes
+	 * @param offset offset removed from each byte
+	 * @return scaled value or INVALID
+	 */
+	static long decode(byte[] input, int start, int len, int offset) {
+		if (len > MAX_LEN || start < 0 || start + len > input.length)
+			return INVALID;
+
+		long value = 0;
+		for (int i = start + len - 1; i >= start; i--) {
+			int digits = BCD_TABLE[(input[i] - offset) & 0xFF];
+			if (digits < 0)
+				return INVALID;
+
+			value = value * 100 + digits;
+		}
+		return value;
+	}
+
+	/**
+	 * Decode signed BCD field, the highest bit of the most significant byte is
+	 * the sign as used by instantaneous power and current
+	 *
+	 * @param input buffer
+	 * @param start start position
+	 * @param len   field length in bytes
+	 * @return scaled value or INVALID
+	 */
+	public static long decodeSigned(byte[] input, int start, int len) {
+		return decodeSigned(input, start, len, 0);
+	}
+
+	/**
+	 * Decode signed BCD field with an offset added to each byte
+	 *
+	 * @param input  buffer
+	 * @param start  start position
+	 * @param len    field length in bytes
+	 * @param offset offset removed from each byte
+	 * @return scaled value or INVALID
+	 */
+	static long decodeSigned(byte[] input, int start, int len, int offset) {
+		if (len <= 0 || len > MAX_LEN || start < 0 || start + len > input.length)
+			return INVALID;
+
+		int msb = (input[start + len - 1] - offset) & 0xFF;
+		int digits = BCD_TABLE[msb & 0x7F];
+		if (digits < 0)
+			return INVALID;
+
+		long value = digits;
+		for (int i = start + len - 2; i >= start; i--) {
+			digits = BCD_TABLE[(input[i] - offset) & 0xFF];
+			if (digits < 0)
+				return INVALID;
+
+			value = value * 100 + digits;
+		}
+
+		return (msb & 0x80) != 0 ? -value : value;
+	}
+
+	/**
+	 * Convert scaled value to double
+	 *
+	 * @param value   scaled value
+	 * @param decimal decimal places
+	 * @return value or NaN if INVALID
+	 */
+	public static double toDouble(long value, int decimal) {
+		if (value == INVALID || decimal < 0 || decimal >= POW10.length)
+			return Double.NaN;
+
+		return (double) value / POW10[decimal];
+	}
+}
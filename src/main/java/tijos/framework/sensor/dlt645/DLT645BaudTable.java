@@ -0,0 +1,126 @@
+package tijos.framework.sensor.dlt645;
+
+/**
+ * Negotiated baud rate of each meter on the bus with the consecutive timeouts
+ * at that rate. Meters not in the table use the bus baud rate.
+ *
+ * @author TiJOS
+ */
+class DLT645BaudTable {
+
+	/**
+	 * Meter entry
+	 */
+	static class Entry {
+		long address;
+		int baudRate;
+		int ceiling = Integer.MAX_VALUE; // max rate the line proved to carry
+		int timeouts;
+		boolean fallback;
+	}
+
+	// entries keyed by meter address
+	private final DLT645AddressMap<Entry> entries = new DLT645AddressMap<Entry>(8);
+
+	/**
+	 * Baud rate of the meter
+	 *
+	 * @param address     6 bytes meter address
+	 * @param defaultRate bus baud rate
+	 * @return
+	 */
+	synchronized int getBaudRate(byte[] address, int defaultRate) {
+		Entry entry = find(address);
+		return entry == null || entry.baudRate == 0 ? defaultRate : entry.baudRate;
+	}
+
+	/**
+	 * Set the baud rate of the meter, timeouts are reset
+	 *
+	 * @param address
+	 * @param baudRate 0 to use the bus baud rate
+	 */
+	synchronized void setBaudRate(byte[] address, int baudRate) {
+		Entry entry = entry(address);
+		entry.baudRate = baudRate;
+		entry.timeouts = 0;
+		entry.fallback = false;
+	}
+
+	/**
+	 * Max baud rate allowed for the meter
+	 *
+	 * @param address
+	 * @return
+	 */
+	synchronized int getCeiling(byte[] address) {
+		Entry entry = find(address);
+		return entry == null ? Integer.MAX_VALUE : entry.ceiling;
+	}
+
+	/**
+	 * Limit the baud rate of the meter after a failure at a higher rate
+	 *
+	 * @param address
+	 * @param ceiling
+	 */
+	synchronized void setCeiling(byte[] address, int ceiling) {
+		entry(address).ceiling = ceiling;
+	}
+
+	/**
+	 * The meter replied
+	 *
+	 * @param address
+	 */
+	synchronized void replied(byte[] address) {
+		Entry entry = find(address);
+		if (entry != null) {
+			entry.timeouts = 0;
+		}
+	}
+
+	/**
+	 * The meter did not reply, fallback is flagged when the timeouts at a
+	 * negotiated rate reach the threshold
+	 *
+	 * @param address
+	 * @param threshold consecutive timeouts
+	 */
+	synchronized void timedOut(byte[] address, int threshold) {
+		Entry entry = find(address);
+		if (entry == null || entry.baudRate == 0)
+			return;
+
+		if (++entry.timeouts >= threshold) {
+			entry.fallback = true;
+		}
+	}
+
+	/**
+	 * Whether the meter should fall back to a lower baud rate
+	 *
+	 * @param address
+	 * @return
+	 */
+	synchronized boolean isFallbackPending(byte[] address) {
+		Entry entry = find(address);
+		return entry != null && entry.fallback;
+	}
+
+	private Entry entry(byte[] address) {
+		long key = DLT645Frame.addressKey(address);
+		Entry entry = entries.get(key);
+		if (entry != null)
+			return entry;
+
+		entry = new Entry();
+		entry.address = key;
+		entries.put(key, entry);
+		return entry;
+	}
+
+	private Entry find(byte[] address) {
+		return entries.get(DLT645Frame.addressKey(address));
+	}
+}
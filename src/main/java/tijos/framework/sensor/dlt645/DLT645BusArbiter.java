@@ -0,0 +1,409 @@
+package tijos.framework.sensor.dlt645;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import tijos.framework.util.Delay;
+
+/**
+ * Arbiter of a DLT645 bus with priority lanes: control frames such as relay
+ * commands and alarm acks first, interactive reads next and background polling
+ * last. A lane is served only while the lanes above it have nothing waiting,
+ * and requests of the same lane are served in order.
+ *
+ * The bus is owned by one caller at a time, a request and its reply are never
+ * interleaved with another frame. Requests queued for the UART read thread wait
+ * in their lane until the bus is free, synchronous callers wait for the
+ * ownership of the bus. While a caller owns the bus only its own request and
+ * the queued requests of the lanes above it are sent, such as control frames
+ * between the frames of a stream. The time from a request asking for the bus
+ * to its frame being sent is recorded for each lane.
+ *
+ * @author TiJOS
+ */
+public class DLT645BusArbiter {
+
+	static final int LANE_COUNT = 3;
+
+	/**
+	 * Synchronous caller waiting for the bus
+	 */
+	static class Waiter {
+		final int lane;
+
+		Waiter(int lane) {
+			this.lane = lane;
+		}
+	}
+
+	// woken when queued requests can be sent again
+	private final IDLT645Transport transport;
+
+	// requests queued for the UART read thread, by lane
+	private final DLT645Request[] queueHead = new DLT645Request[LANE_COUNT];
+	private final DLT645Request[] queueTail = new DLT645Request[LANE_COUNT];
+
+	// synchronous callers waiting for the bus in arrival order
+	private final ArrayList<Waiter> waiters = new ArrayList<Waiter>();
+
+	// synchronous caller owning the bus
+	private Thread owner = null;
+	private int holds = 0;
+	private int ownerLane = 0;
+	private long askTime = 0;
+
+	/***** statistics *******/
+	private final long[] frameCount = new long[LANE_COUNT];
+	private final long[] totalWait = new long[LANE_COUNT];
+	private final long[] maxWait = new long[LANE_COUNT];
+
+	DLT645BusArbiter(IDLT645Transport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Wait until the caller owns the bus, a caller owning it already keeps it
+	 *
+	 * @param lane lane of the caller
+	 * @throws IOException if waiting is interrupted
+	 */
+	synchronized void acquire(int lane) throws IOException {
+		Thread current = Thread.currentThread();
+		if (owner == current) {
+			holds++;
+			return;
+		}
+
+		long asked = System.currentTimeMillis();
+		Waiter waiter = new Waiter(lane);
+		waiters.add(waiter);
+		try {
+			while (owner != null || nextWaiter() != waiter) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			waiters.remove(waiter);
+			notifyAll();
+			throw new IOException("DLT645 waiting for the bus interrupted");
+		}
+
+		waiters.remove(waiter);
+		owner = current;
+		holds = 1;
+		ownerLane = lane;
+		askTime = asked;
+	}
+
+	/**
+	 * Give up the bus once the caller released it as often as it acquired it,
+	 * the UART read thread is woken for the requests queued meanwhile
+	 */
+	void release() {
+		synchronized (this) {
+			if (owner != Thread.currentThread())
+				return;
+
+			if (--holds > 0)
+				return;
+
+			owner = null;
+			notifyAll();
+
+			if (!isPending())
+				return;
+		}
+
+		transport.wakeup();
+	}
+
+	/**
+	 * Let the callers of the lanes above the owner have the bus between two
+	 * transactions, such as between the frames of a stream. The owner waits for
+	 * the bus again in its lane.
+	 *
+	 * @throws IOException if waiting is interrupted
+	 */
+	void yieldBus() throws IOException {
+		int lane;
+		synchronized (this) {
+			if (owner != Thread.currentThread() || holds != 1 || !isWaiting(ownerLane))
+				return;
+
+			lane = ownerLane;
+		}
+
+		release();
+		acquire(lane);
+	}
+
+	/**
+	 * Wait before a retry without holding the bus, so the other callers are not
+	 * blocked while the meter is given time. The owner waits for the bus again
+	 * in its lane. A caller holding the bus more than once, such as a stream
+	 * between its frames, keeps it.
+	 *
+	 * @param delay time in ms
+	 * @throws IOException if waiting is interrupted
+	 */
+	void backOff(int delay) throws IOException {
+		int lane = -1;
+		synchronized (this) {
+			if (owner == Thread.currentThread() && holds == 1) {
+				lane = ownerLane;
+			}
+		}
+
+		if (lane >= 0) {
+			release();
+		}
+
+		Delay.msDelay(delay);
+
+		if (lane >= 0) {
+			acquire(lane);
+		}
+	}
+
+	/**
+	 * Whether the caller owns the bus
+	 *
+	 * @return
+	 */
+	synchronized boolean isOwner() {
+		return owner == Thread.currentThread();
+	}
+
+	/**
+	 * Lane of the caller owning the bus
+	 *
+	 * @return
+	 */
+	synchronized int getOwnerLane() {
+		return ownerLane;
+	}
+
+	/**
+	 * Time the owner asked for the bus for its first frame, the time now for
+	 * the following ones
+	 *
+	 * @return time in ms
+	 */
+	synchronized long takeAskTime() {
+		long time = askTime;
+		askTime = 0;
+		return time != 0 ? time : System.currentTimeMillis();
+	}
+
+	/**
+	 * Queue the request in its lane for the UART read thread
+	 *
+	 * @param request
+	 */
+	synchronized void offer(DLT645Request request) {
+		if (request.queuedTime == 0) {
+			request.queuedTime = System.currentTimeMillis();
+		}
+
+		int lane = request.lane;
+		request.next = null;
+		if (queueTail[lane] == null) {
+			queueHead[lane] = request;
+		} else {
+			queueTail[lane].next = request;
+		}
+		queueTail[lane] = request;
+	}
+
+	/**
+	 * Take the next request to send, its waiting time is recorded. While a
+	 * caller owns the bus only its request and the ones of the lanes above are
+	 * taken.
+	 *
+	 * @return request or null if none can be sent
+	 */
+	synchronized DLT645Request poll() {
+		for (int lane = 0; lane < LANE_COUNT; lane++) {
+			if (owner != null && lane > ownerLane)
+				break;
+
+			DLT645Request prev = null;
+			DLT645Request request = queueHead[lane];
+			if (owner != null && lane == ownerLane) {
+				while (request != null && !request.owned) {
+					prev = request;
+					request = request.next;
+				}
+			}
+
+			if (request == null)
+				continue;
+
+			if (prev == null) {
+				queueHead[lane] = request.next;
+			} else {
+				prev.next = request.next;
+			}
+			if (queueTail[lane] == request) {
+				queueTail[lane] = prev;
+			}
+			request.next = null;
+
+			sent(lane, request.queuedTime);
+			return request;
+		}
+		return null;
+	}
+
+	/**
+	 * Take all the queued requests
+	 *
+	 * @return requests linked by next in lane order
+	 */
+	synchronized DLT645Request drain() {
+		DLT645Request head = null;
+		DLT645Request tail = null;
+		for (int lane = 0; lane < LANE_COUNT; lane++) {
+			if (queueHead[lane] == null)
+				continue;
+
+			if (tail == null) {
+				head = queueHead[lane];
+			} else {
+				tail.next = queueHead[lane];
+			}
+			tail = queueTail[lane];
+
+			queueHead[lane] = null;
+			queueTail[lane] = null;
+		}
+		return head;
+	}
+
+	/**
+	 * Whether a request queued for the UART read thread can be sent now
+	 *
+	 * @return
+	 */
+	synchronized boolean isPending() {
+		for (int lane = 0; lane < LANE_COUNT; lane++) {
+			if (owner == null || lane < ownerLane) {
+				if (queueHead[lane] != null)
+					return true;
+				continue;
+			}
+
+			if (lane == ownerLane) {
+				for (DLT645Request request = queueHead[lane]; request != null; request = request.next) {
+					if (request.owned)
+						return true;
+				}
+			}
+			return false;
+		}
+		return false;
+	}
+
+	/**
+	 * Record the frame of the lane sent
+	 *
+	 * @param lane
+	 * @param queuedTime time in ms the request asked for the bus
+	 */
+	synchronized void sent(int lane, long queuedTime) {
+		long wait = Math.max(0, System.currentTimeMillis() - queuedTime);
+		frameCount[lane]++;
+		totalWait[lane] += wait;
+		if (wait > maxWait[lane]) {
+			maxWait[lane] = wait;
+		}
+	}
+
+	/**
+	 * Number of frames of the lane sent since the statistics was reset
+	 *
+	 * @param lane DLT645_LANE_CONTROL, DLT645_LANE_INTERACTIVE or
+	 *             DLT645_LANE_POLLING
+	 * @return
+	 */
+	public synchronized long getFrameCount(int lane) {
+		return frameCount[lane];
+	}
+
+	/**
+	 * Mean time the frames of the lane waited for the bus
+	 *
+	 * @param lane
+	 * @return time in ms
+	 */
+	public synchronized double getMeanWait(int lane) {
+		if (frameCount[lane] == 0)
+			return 0;
+
+		return (double) totalWait[lane] / frameCount[lane];
+	}
+
+	/**
+	 * Longest time a frame of the lane waited for the bus
+	 *
+	 * @param lane
+	 * @return time in ms
+	 */
+	public synchronized long getMaxWait(int lane) {
+		return maxWait[lane];
+	}
+
+	/**
+	 * Requests and callers of the lane waiting for the bus now
+	 *
+	 * @param lane
+	 * @return
+	 */
+	public synchronized int getQueueLength(int lane) {
+		int length = 0;
+		for (int i = 0; i < waiters.size(); i++) {
+			if (waiters.get(i).lane == lane) {
+				length++;
+			}
+		}
+		for (DLT645Request request = queueHead[lane]; request != null; request = request.next) {
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * Reset the waiting time statistics of all lanes
+	 */
+	public synchronized void resetStatistics() {
+		for (int lane = 0; lane < LANE_COUNT; lane++) {
+			frameCount[lane] = 0;
+			totalWait[lane] = 0;
+			maxWait[lane] = 0;
+		}
+	}
+
+	/**
+	 * Waiter the bus goes to next, the first one of the highest lane
+	 */
+	private Waiter nextWaiter() {
+		Waiter next = null;
+		for (int i = 0; i < waiters.size(); i++) {
+			Waiter waiter = waiters.get(i);
+			if (next == null || waiter.lane < next.lane) {
+				next = waiter;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Whether a caller of a lane above the lane waits for the bus
+	 */
+	private boolean isWaiting(int lane) {
+		for (int i = 0; i < waiters.size(); i++) {
+			if (waiters.get(i).lane < lane)
+				return true;
+		}
+		return false;
+	}
+}
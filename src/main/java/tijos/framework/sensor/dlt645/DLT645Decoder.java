@@ -0,0 +1,258 @@
+package tijos.framework.sensor.dlt645;
+
+/**
+ * Resumable DLT645 frame decoder. Bytes are fed in whatever chunks arrive from
+ * the bus, the partial frame is kept between calls and a complete frame is
+ * exposed from an internal buffer which is reused for the next frame, so no
+ * allocation happens per frame.
+ *
+ * Frame layout in the buffer: 68 A0..A5 68 C L DATA CS 16
+ *
+ * @author TiJOS
+ */
+public class DLT645Decoder {
+
+	private static final int START_BYTE = 0x68;
+	private static final int END_BYTE = 0x16;
+
+	/***** offsets in frame *******/
+	public static final int OFFSET_ADDRESS = 1;
+	public static final int OFFSET_CONTROL = 8;
+	public static final int OFFSET_LENGTH = 9;
+	public static final int OFFSET_DATA = 10;
+
+	private static final int ADDRESS_LEN = 6;
+	private static final int FRAME_OVERHEAD = 12; // 68 + 6 address + 68 + C + L + CS + 16
+
+	/**
+	 * Max frame length, L is one byte
+	 */
+	public static final int MAX_FRAME_LEN = FRAME_OVERHEAD + 255;
+
+	private final byte[] buffer = new byte[MAX_FRAME_LEN];
+
+	// view over the complete frame
+	private final DLT645Frame frame = new DLT645Frame();
+
+	// bytes held in buffer, buffer[0] is always the start byte when count > 0
+	private int count = 0;
+
+	// length of the complete frame at the head of buffer, 0 if none
+	private int frameLen = 0;
+
+	// frames dropped because of bad checksum or framing
+	private int errorCount = 0;
+
+	/**
+	 * Feed received bytes to the decoder, it stops as soon as a frame is
+	 * complete. A frame returned by the previous call is released first.
+	 *
+	 * @param data received bytes
+	 * @param off  start position
+	 * @param len  length
+	 * @return number of bytes consumed
+	 */
+	public int update(byte[] data, int off, int len) {
+		if (frameLen > 0) {
+			release();
+			if (frameLen > 0)
+				return 0;
+		}
+
+		int i = 0;
+		while (i < len) {
+			int val = data[off + i++] & 0xFF;
+
+			if (count == 0) {
+				// skip leading bytes and garbage until start byte
+				if (val == START_BYTE) {
+					buffer[count++] = (byte) val;
+				}
+				continue;
+			}
+
+			buffer[count++] = (byte) val;
+			check();
+
+			if (frameLen > 0)
+				break;
+		}
+
+		return i;
+	}
+
+	/**
+	 * Whether a complete, checksum-valid frame is available
+	 *
+	 * @return true if frame ready
+	 */
+	public boolean isFrameReady() {
+		return frameLen > 0;
+	}
+
+	/**
+	 * Drop the current frame and reset the decoder state
+	 */
+	public void reset() {
+		count = 0;
+		frameLen = 0;
+	}
+
+	/**
+	 * Release the current frame, bytes received after it are kept
+	 */
+	public void release() {
+		if (frameLen == 0)
+			return;
+
+		int left = count - frameLen;
+		System.arraycopy(buffer, frameLen, buffer, 0, left);
+		count = left;
+		frameLen = 0;
+
+		discard(0);
+		check();
+	}
+
+	/**
+	 * View over the complete frame, valid until the frame is released
+	 *
+	 * @return
+	 */
+	public DLT645Frame getFrame() {
+		return frame;
+	}
+
+	/**
+	 * Frame buffer, valid frame starts from 0 with length of getFrameLength(),
+	 * the data area still carries the 0x33 offset
+	 *
+	 * @return
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Length of the complete frame
+	 *
+	 * @return
+	 */
+	public int getFrameLength() {
+		return frameLen;
+	}
+
+	/**
+	 * Control code of the frame
+	 *
+	 * @return
+	 */
+	public int getControlCode() {
+		return buffer[OFFSET_CONTROL] & 0xFF;
+	}
+
+	/**
+	 * Data length of the frame
+	 *
+	 * @return
+	 */
+	public int getDataLength() {
+		return buffer[OFFSET_LENGTH] & 0xFF;
+	}
+
+	/**
+	 * Copy meter address of the frame
+	 *
+	 * @param address target buffer
+	 * @param off     start position
+	 */
+	public void getAddress(byte[] address, int off) {
+		System.arraycopy(buffer, OFFSET_ADDRESS, address, off, ADDRESS_LEN);
+	}
+
+	/**
+	 * First 4 bytes of the data area as data tag, 0 if the data area is shorter
+	 * than the tag
+	 *
+	 * @return
+	 */
+	public int getDataTag() {
+		if (getDataLength() < 4)
+			return 0;
+
+		return frame.dataByte(0) | (frame.dataByte(1) << 8) | (frame.dataByte(2) << 16) | (frame.dataByte(3) << 24);
+	}
+
+	/**
+	 * Number of bytes held of an incomplete frame
+	 *
+	 * @return
+	 */
+	public int getPendingLength() {
+		return count - frameLen;
+	}
+
+	/**
+	 * Number of frames dropped because of bad checksum or framing
+	 *
+	 * @return
+	 */
+	public int getErrorCount() {
+		return errorCount;
+	}
+
+	/**
+	 * Validate the bytes held so far, resync on the next start byte if the
+	 * candidate frame is broken
+	 */
+	private void check() {
+		while (count > 0) {
+			if (count > OFFSET_CONTROL - 1 && buffer[OFFSET_CONTROL - 1] != START_BYTE) {
+				errorCount++;
+				discard(1);
+				continue;
+			}
+
+			if (count <= OFFSET_LENGTH)
+				return;
+
+			int total = FRAME_OVERHEAD + (buffer[OFFSET_LENGTH] & 0xFF);
+			if (count < total)
+				return;
+
+			if (buffer[total - 1] == END_BYTE && (buffer[total - 2] & 0xFF) == checksum(total - 2)) {
+				frameLen = total;
+				frame.wrap(buffer, 0, total);
+				return;
+			}
+
+			errorCount++;
+			discard(1);
+		}
+	}
+
+	/**
+	 * Drop bytes before the next start byte searching from the position
+	 *
+	 * @param from search position
+	 */
+	private void discard(int from) {
+		int pos = from;
+		while (pos < count && buffer[pos] != START_BYTE) {
+			pos++;
+		}
+
+		count -= pos;
+		if (count > 0 && pos > 0) {
+			System.arraycopy(buffer, pos, buffer, 0, count);
+		}
+	}
+
+	private int checksum(int len) {
+		int cs = 0;
+		for (int i = 0; i < len; i++) {
+			cs += buffer[i];
+		}
+		return cs & 0xFF;
+	}
+}
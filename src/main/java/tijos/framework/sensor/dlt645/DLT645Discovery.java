@@ -0,0 +1,176 @@
+package tijos.framework.sensor.dlt645;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Find all the meters on the bus by searching the address space with wildcard
+ * addresses. The 12 digits are resolved from the least significant one, a
+ * wildcard address answered by several meters is split into 10 sub-ranges on
+ * the next digit. Each meter found is verified with its exact address.
+ *
+ * Each meter costs at most 10 probes per digit, the search stops when the
+ * transaction limit is reached. The UART read thread must not be running.
+ *
+ * @author TiJOS
+ */
+public class DLT645Discovery {
+
+	private static final int ADDRESS_LEN = 6;
+	private static final int DIGITS = ADDRESS_LEN * 2;
+
+	private final TiDLT645 dlt645;
+
+	// data tag every meter answers, error replies also identify the meter
+	private int probeTag = TiDLT645.DLT645_TAG_FORWARD_ACTIVE_POWER;
+
+	private int quietTime = 50;
+	private int maxTransactions = 2000;
+
+	private final ArrayList<byte[]> found = new ArrayList<byte[]>();
+	private int transactions = 0;
+	private boolean complete = false;
+
+	/**
+	 * Initialize with the DLT645 bus
+	 *
+	 * @param dlt645
+	 */
+	public DLT645Discovery(TiDLT645 dlt645) {
+		this.dlt645 = dlt645;
+	}
+
+	/**
+	 * Data tag of the probe request
+	 *
+	 * @param probeTag
+	 */
+	public void setProbeTag(int probeTag) {
+		this.probeTag = probeTag;
+	}
+
+	/**
+	 * Time to wait for more replies after a frame is received
+	 *
+	 * @param quietTime time in ms
+	 */
+	public void setQuietTime(int quietTime) {
+		this.quietTime = quietTime;
+	}
+
+	/**
+	 * Max number of bus transactions of a search
+	 *
+	 * @param maxTransactions
+	 */
+	public void setMaxTransactions(int maxTransactions) {
+		this.maxTransactions = maxTransactions;
+	}
+
+	/**
+	 * Search the bus
+	 *
+	 * @return addresses of the meters found, could be added to the poller
+	 * @throws IOException
+	 */
+	public byte[][] discover() throws IOException {
+		found.clear();
+		transactions = 0;
+		complete = true;
+
+		byte[] pattern = new byte[ADDRESS_LEN];
+		for (int i = 0; i < ADDRESS_LEN; i++) {
+			pattern[i] = (byte) 0xAA;
+		}
+
+		search(pattern, 0);
+
+		byte[][] addresses = new byte[found.size()][];
+		for (int i = 0; i < addresses.length; i++) {
+			addresses[i] = found.get(i);
+		}
+		return addresses;
+	}
+
+	/**
+	 * Number of bus transactions of the last search
+	 *
+	 * @return
+	 */
+	public int getTransactionCount() {
+		return transactions;
+	}
+
+	/**
+	 * Whether the last search covered the whole address space within the
+	 * transaction limit
+	 *
+	 * @return
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Probe the pattern, the digits before the index are resolved
+	 */
+	private void search(byte[] pattern, int digit) throws IOException {
+		byte[] address = new byte[ADDRESS_LEN];
+
+		int result = probe(pattern, address);
+		if (result == TiDLT645.DLT645_PROBE_NONE)
+			return;
+
+		if (result == TiDLT645.DLT645_PROBE_SINGLE) {
+			// merged replies could pass as one frame, confirm the exact address
+			if (digit == DIGITS || probe(address, new byte[ADDRESS_LEN]) == TiDLT645.DLT645_PROBE_SINGLE) {
+				addFound(address);
+				return;
+			}
+		}
+
+		if (digit == DIGITS) {
+			DLT645Trace.trace(DLT645Trace.ERROR, "DLT645 Discovery: duplicate meter address");
+			return;
+		}
+
+		int index = digit / 2;
+		int shift = (digit & 1) == 0 ? 0 : 4;
+		byte wildcard = pattern[index];
+
+		for (int d = 0; d < 10 && complete; d++) {
+			pattern[index] = (byte) ((wildcard & ~(0x0F << shift)) | (d << shift));
+			search(pattern, digit + 1);
+		}
+
+		pattern[index] = wildcard;
+	}
+
+	private int probe(byte[] pattern, byte[] address) throws IOException {
+		if (transactions >= maxTransactions) {
+			complete = false;
+			return TiDLT645.DLT645_PROBE_NONE;
+		}
+
+		transactions++;
+		return dlt645.probe(pattern, probeTag, address, quietTime);
+	}
+
+	private void addFound(byte[] address) {
+		for (int i = 0; i < found.size(); i++) {
+			byte[] a = found.get(i);
+			boolean same = true;
+			for (int j = 0; j < ADDRESS_LEN; j++) {
+				if (a[j] != address[j]) {
+					same = false;
+					break;
+				}
+			}
+
+			if (same)
+				return;
+		}
+
+		found.add(address);
+	}
+}
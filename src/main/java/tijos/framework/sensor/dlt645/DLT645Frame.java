@@ -0,0 +1,262 @@
+package tijos.framework.sensor.dlt645;
+
+/**
+ * Flyweight view over a raw DLT645 frame in a receive buffer. Nothing is
+ * copied, the 0x33 offset of the data area is removed by the accessors. The
+ * view is only valid until the buffer is recycled.
+ *
+ * Field offsets are counted from the value, which is the data area after the
+ * data tag for frames carrying a data tag and the whole data area otherwise.
+ *
+ * @author TiJOS
+ */
+public class DLT645Frame {
+
+	private static final int DATA_OFFSET = 0x33;
+	private static final int DATA_TAG_LEN = 4;
+
+	private byte[] buffer;
+	private int offset;
+	private int length;
+
+	/**
+	 * Wrap the frame in the buffer
+	 *
+	 * @param buffer frame buffer
+	 * @param offset position of the start byte 0x68
+	 * @param length frame length
+	 * @return this view
+	 */
+	public DLT645Frame wrap(byte[] buffer, int offset, int length) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+		return this;
+	}
+
+	/**
+	 * Frame length
+	 *
+	 * @return
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Meter address A0..A5 packed in a long, A0 in the highest byte, the same
+	 * value as addressKey of the address bytes
+	 *
+	 * @return
+	 */
+	public long address() {
+		long address = 0;
+		for (int i = 0; i < 6; i++) {
+			address = (address << 8) | (buffer[offset + DLT645Decoder.OFFSET_ADDRESS + i] & 0xFF);
+		}
+		return address;
+	}
+
+	/**
+	 * Copy meter address
+	 *
+	 * @param address target buffer
+	 * @param off     start position
+	 */
+	public void getAddress(byte[] address, int off) {
+		System.arraycopy(buffer, offset + DLT645Decoder.OFFSET_ADDRESS, address, off, 6);
+	}
+
+	/**
+	 * Check the meter address of the frame
+	 *
+	 * @param address 6 bytes meter address
+	 * @return
+	 */
+	public boolean isAddress(byte[] address) {
+		for (int i = 0; i < 6; i++) {
+			if (buffer[offset + DLT645Decoder.OFFSET_ADDRESS + i] != address[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Control code
+	 *
+	 * @return
+	 */
+	public int controlCode() {
+		return buffer[offset + DLT645Decoder.OFFSET_CONTROL] & 0xFF;
+	}
+
+	/**
+	 * Length of the data area
+	 *
+	 * @return
+	 */
+	public int dataLength() {
+		return buffer[offset + DLT645Decoder.OFFSET_LENGTH] & 0xFF;
+	}
+
+	/**
+	 * Whether the data area starts with a data tag, false for error replies and
+	 * for functions without data tag such as read address and write data reply
+	 *
+	 * @return
+	 */
+	public boolean hasDataTag() {
+		int control = controlCode();
+		switch (control & 0x1F) {
+		case 0x08: // time sync
+		case 0x13: // read address
+		case 0x14: // write data
+		case 0x15: // write address
+		case 0x17: // change comm speed
+			return false;
+		}
+
+		return (control & 0x40) == 0 && dataLength() >= DATA_TAG_LEN;
+	}
+
+	/**
+	 * Data tag, 0 if the frame has no data tag
+	 *
+	 * @return
+	 */
+	public int dataTag() {
+		if (!hasDataTag())
+			return 0;
+
+		return dataByte(0) | (dataByte(1) << 8) | (dataByte(2) << 16) | (dataByte(3) << 24);
+	}
+
+	/**
+	 * Byte of the data area with 0x33 removed
+	 *
+	 * @param index index in the data area
+	 * @return unsigned byte value
+	 */
+	public int dataByte(int index) {
+		return (buffer[offset + DLT645Decoder.OFFSET_DATA + index] - DATA_OFFSET) & 0xFF;
+	}
+
+	/**
+	 * Copy bytes of the data area with 0x33 removed
+	 *
+	 * @param index index in the data area
+	 * @param dst   target buffer
+	 * @param off   start position
+	 * @param len   length
+	 */
+	public void copyData(int index, byte[] dst, int off, int len) {
+		int src = offset + DLT645Decoder.OFFSET_DATA + index;
+		for (int i = 0; i < len; i++) {
+			dst[off + i] = (byte) (buffer[src + i] - DATA_OFFSET);
+		}
+	}
+
+	/**
+	 * Length of the value
+	 *
+	 * @return
+	 */
+	public int valueLength() {
+		return dataLength() - valueStart();
+	}
+
+	/**
+	 * Byte of the value
+	 *
+	 * @param index index in the value
+	 * @return unsigned byte value
+	 */
+	public int valueByte(int index) {
+		return dataByte(valueStart() + index);
+	}
+
+	/**
+	 * Copy bytes of the value
+	 *
+	 * @param index index in the value
+	 * @param dst   target buffer
+	 * @param off   start position
+	 * @param len   length
+	 */
+	public void copyValue(int index, byte[] dst, int off, int len) {
+		copyData(valueStart() + index, dst, off, len);
+	}
+
+	/**
+	 * Unsigned BCD field of the value as scaled long
+	 *
+	 * @param index index in the value
+	 * @param len   field length
+	 * @return scaled value or DLT645BCD.INVALID
+	 */
+	public long bcdValue(int index, int len) {
+		int start = valueStart() + index;
+		if (index < 0 || start + len > dataLength())
+			return DLT645BCD.INVALID;
+
+		return DLT645BCD.decode(buffer, offset + DLT645Decoder.OFFSET_DATA + start, len, DATA_OFFSET);
+	}
+
+	/**
+	 * Signed BCD field of the value as scaled long, the highest bit of the most
+	 * significant byte is the sign
+	 *
+	 * @param index index in the value
+	 * @param len   field length
+	 * @return scaled value or DLT645BCD.INVALID
+	 */
+	public long bcdSignedValue(int index, int len) {
+		int start = valueStart() + index;
+		if (index < 0 || start + len > dataLength())
+			return DLT645BCD.INVALID;
+
+		return DLT645BCD.decodeSigned(buffer, offset + DLT645Decoder.OFFSET_DATA + start, len, DATA_OFFSET);
+	}
+
+	/**
+	 * Unsigned BCD field of the value
+	 *
+	 * @param index    index in the value
+	 * @param len      field length
+	 * @param decimals decimal places
+	 * @return reading or NaN if the field is not valid BCD
+	 */
+	public double bcdField(int index, int len, int decimals) {
+		return DLT645BCD.toDouble(bcdValue(index, len), decimals);
+	}
+
+	/**
+	 * Little endian unsigned 32 bits field of the value
+	 *
+	 * @param index index in the value
+	 * @return
+	 */
+	public long uint32(int index) {
+		return (valueByte(index) | (valueByte(index + 1) << 8) | (valueByte(index + 2) << 16)
+				| ((long) valueByte(index + 3) << 24)) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * 6 bytes meter address packed in a long, A0 in the highest byte, as the key
+	 * of the tables kept for each meter
+	 *
+	 * @param address meter address
+	 * @return
+	 */
+	static long addressKey(byte[] address) {
+		long key = 0;
+		for (int i = 0; i < 6; i++) {
+			key = (key << 8) | (address[i] & 0xFF);
+		}
+		return key;
+	}
+
+	private int valueStart() {
+		return hasDataTag() ? DATA_TAG_LEN : 0;
+	}
+}
@@ -0,0 +1,555 @@
+package tijos.framework.sensor.dlt645;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+/**
+ * TCP server sharing one DLT645 bus among remote clients. Clients send request
+ * frames as to a transparent serial server and receive the reply frames of the
+ * meters. One thread serves all the connections.
+ *
+ * The bus is arbitrated by a fair queue: each client has its own queue and the
+ * clients take turns, one gateway transaction is on the bus at a time. A read
+ * frame identical to one queued or on the bus is not sent again, the reply is
+ * sent to every client waiting for it. A request without reply in the timeout
+ * of the meter gets no answer, as on the bus.
+ *
+ * The bus must be started or served by a reactor.
+ *
+ * @author TiJOS
+ */
+public class DLT645Gateway implements Runnable, IRequestListener {
+
+	private static final int RX_BUFFER_SIZE = 512;
+	private static final int TX_BUFFER_SIZE = 8192; // slower clients are dropped
+	private static final int MAX_PENDING = 32; // requests of a client waiting for reply
+
+	/**
+	 * Request frame, identical read frames are merged
+	 */
+	static class FrameKey {
+		final byte[] frame;
+		final int hash;
+
+		FrameKey(byte[] frame) {
+			this.frame = frame;
+			this.hash = Arrays.hashCode(frame);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof FrameKey && Arrays.equals(frame, ((FrameKey) o).frame);
+		}
+	}
+
+	/**
+	 * Bus transaction with the clients waiting for its reply
+	 */
+	static class Transaction {
+		final byte[] frame;
+		final FrameKey key; // null if not merged
+		final ArrayList<Client> waiters = new ArrayList<Client>(2);
+		DLT645Request request;
+
+		Transaction(byte[] frame, FrameKey key) {
+			this.frame = frame;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Connection of a client
+	 */
+	static class Client {
+		final SocketChannel channel;
+		SelectionKey key;
+
+		final DLT645Decoder decoder = new DLT645Decoder();
+		final ByteBuffer rxBuffer = ByteBuffer.allocate(RX_BUFFER_SIZE);
+		final ByteBuffer txBuffer = ByteBuffer.allocate(TX_BUFFER_SIZE);
+
+		// transactions queued by the client, sent in its turns
+		final ArrayList<Transaction> queue = new ArrayList<Transaction>();
+
+		// replies the client waits for
+		int pending;
+		boolean closed;
+
+		Client(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	private final TiDLT645 dlt645;
+
+	private final ServerSocketChannel server;
+	private final Selector selector;
+
+	// reactor thread only
+	private final ArrayList<Client> clients = new ArrayList<Client>();
+	private final HashMap<FrameKey, Transaction> reads = new HashMap<FrameKey, Transaction>();
+	private int turn = 0;
+	private Transaction current = null;
+
+	// requests done on the bus thread, guarded by this
+	private final ArrayList<DLT645Request> done = new ArrayList<DLT645Request>();
+
+	// keep the loop running, cleared by stop
+	private volatile boolean keeprunning = false;
+
+	// thread running the loop, guarded by this
+	private Thread thread = null;
+
+	/***** statistics *******/
+	private volatile long transactionCount = 0;
+	private volatile long mergedCount = 0;
+
+	/**
+	 * Initialize and listen on the port
+	 *
+	 * @param dlt645 bus shared by the clients
+	 * @param port   TCP port, 0 for any free port
+	 * @throws IOException
+	 */
+	public DLT645Gateway(TiDLT645 dlt645, int port) throws IOException {
+		this.dlt645 = dlt645;
+
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * TCP port the gateway listens on
+	 *
+	 * @return
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Start the gateway on a new thread
+	 */
+	public void start() {
+		start(null);
+	}
+
+	/**
+	 * Start the gateway, nothing is done if it is started already
+	 *
+	 * @param executor executor to run the gateway, null for a new thread
+	 */
+	public void start(Executor executor) {
+		synchronized (this) {
+			if (keeprunning)
+				return;
+
+			keeprunning = true;
+		}
+
+		try {
+			if (executor == null) {
+				new Thread(this).start();
+			} else {
+				executor.execute(this);
+			}
+		} catch (RuntimeException e) {
+			keeprunning = false;
+			throw e;
+		}
+	}
+
+	/**
+	 * Stop the gateway and wait for it to exit unless called by the gateway
+	 * itself. The clients stay connected.
+	 */
+	public void stop() {
+		Thread caller = Thread.currentThread();
+
+		keeprunning = false;
+		selector.wakeup();
+
+		synchronized (this) {
+			while (thread != null && thread != caller) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop the gateway and close all the connections
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		stop();
+
+		for (int i = clients.size() - 1; i >= 0; i--) {
+			closeClient(clients.get(i));
+		}
+
+		server.close();
+		selector.close();
+	}
+
+	/**
+	 * Number of connected clients
+	 *
+	 * @return
+	 */
+	public synchronized int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * Number of transactions sent to the bus
+	 *
+	 * @return
+	 */
+	public long getTransactionCount() {
+		return transactionCount;
+	}
+
+	/**
+	 * Number of requests answered by the transaction of an identical request
+	 *
+	 * @return
+	 */
+	public long getMergedCount() {
+		return mergedCount;
+	}
+
+	@Override
+	public void onRequestDone(DLT645Request request) {
+		synchronized (this) {
+			done.add(request);
+		}
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		synchronized (this) {
+			if (thread != null || !keeprunning)
+				return;
+
+			thread = Thread.currentThread();
+		}
+
+		try {
+			while (keeprunning) {
+				try {
+					serve();
+				} catch (IOException e) {
+					DLT645Trace.error("DLT645 Gateway select failed", e);
+					break;
+				}
+			}
+		} finally {
+			synchronized (this) {
+				thread = null;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * One pass: accept, read and write the connections, finish the transaction
+	 * done and send the next one
+	 *
+	 * @throws IOException
+	 */
+	private void serve() throws IOException {
+		selector.select();
+
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+
+			if (!key.isValid())
+				continue;
+
+			if (key.isAcceptable()) {
+				accept();
+				continue;
+			}
+
+			Client client = (Client) key.attachment();
+			try {
+				if (key.isWritable()) {
+					write(client);
+				}
+				if (key.isReadable()) {
+					read(client);
+				}
+			} catch (IOException e) {
+				closeClient(client);
+			}
+		}
+
+		boolean finished;
+		synchronized (this) {
+			finished = current != null && done.contains(current.request);
+			done.clear();
+		}
+
+		if (finished) {
+			finish(current);
+		}
+
+		schedule();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null)
+			return;
+
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+
+		Client client = new Client(channel);
+		client.key = channel.register(selector, SelectionKey.OP_READ, client);
+
+		synchronized (this) {
+			clients.add(client);
+		}
+	}
+
+	/**
+	 * Decode the request frames received from the client
+	 */
+	private void read(Client client) throws IOException {
+		ByteBuffer rx = client.rxBuffer;
+		rx.clear();
+		if (client.channel.read(rx) < 0)
+			throw new IOException("connection closed");
+
+		byte[] data = rx.array();
+		int len = rx.position();
+		int pos = 0;
+		DLT645Decoder decoder = client.decoder;
+		while (pos < len) {
+			pos += decoder.update(data, pos, len - pos);
+
+			while (decoder.isFrameReady()) {
+				request(client, decoder);
+				decoder.release();
+			}
+		}
+
+		updateInterest(client);
+	}
+
+	/**
+	 * Queue the request frame held by the decoder, or merge it with an identical
+	 * read
+	 */
+	private void request(Client client, DLT645Decoder decoder) {
+		int controlCode = decoder.getControlCode();
+
+		// replies of other masters are not requests
+		if ((controlCode & TiDLT645.DLT645_SLAVE_REPLY_NORMAL) != 0)
+			return;
+
+		byte[] frame = new byte[decoder.getFrameLength()];
+		System.arraycopy(decoder.getBuffer(), 0, frame, 0, frame.length);
+
+		FrameKey key = isRead(controlCode) ? new FrameKey(frame) : null;
+		Transaction transaction = key == null ? null : reads.get(key);
+		if (transaction != null) {
+			if (!transaction.waiters.contains(client)) {
+				transaction.waiters.add(client);
+				client.pending++;
+				mergedCount++;
+			}
+			return;
+		}
+
+		transaction = new Transaction(frame, key);
+		transaction.waiters.add(client);
+		client.pending++;
+		client.queue.add(transaction);
+		if (key != null) {
+			reads.put(key, transaction);
+		}
+	}
+
+	/**
+	 * Send the next transaction when the bus is free, the clients take turns
+	 */
+	private void schedule() {
+		while (current == null) {
+			Transaction transaction = null;
+			for (int i = 0; i < clients.size() && transaction == null; i++) {
+				turn = (turn + 1) % clients.size();
+				Client client = clients.get(turn);
+				if (!client.queue.isEmpty()) {
+					transaction = client.queue.remove(0);
+				}
+			}
+
+			if (transaction == null)
+				return;
+
+			try {
+				current = transaction;
+				transaction.request = dlt645.transferAsync(transaction.frame, 0, transaction.frame.length);
+				transactionCount++;
+				transaction.request.setListener(this);
+			} catch (IOException e) {
+				DLT645Trace.error("DLT645 Gateway send failed", e);
+				finish(transaction);
+			}
+		}
+	}
+
+	/**
+	 * Send the reply frame of the transaction to every client waiting for it
+	 */
+	private void finish(Transaction transaction) {
+		if (transaction == current) {
+			current = null;
+		}
+
+		if (transaction.key != null && reads.get(transaction.key) == transaction) {
+			reads.remove(transaction.key);
+		}
+
+		byte[] reply = null;
+		if (transaction.request != null) {
+			try {
+				reply = transaction.request.getReplyFrame();
+			} catch (IOException e) {
+				// done already, no wait
+			}
+		}
+
+		for (int i = 0; i < transaction.waiters.size(); i++) {
+			Client client = transaction.waiters.get(i);
+			if (client.closed)
+				continue;
+
+			client.pending--;
+			try {
+				if (reply != null) {
+					if (client.txBuffer.remaining() < reply.length)
+						throw new IOException("client too slow");
+
+					client.txBuffer.put(reply);
+					write(client);
+				}
+				updateInterest(client);
+			} catch (IOException e) {
+				closeClient(client);
+			}
+		}
+	}
+
+	/**
+	 * Write what the connection accepts
+	 */
+	private void write(Client client) throws IOException {
+		ByteBuffer tx = client.txBuffer;
+		if (tx.position() == 0)
+			return;
+
+		tx.flip();
+		try {
+			client.channel.write(tx);
+		} finally {
+			tx.compact();
+		}
+
+		updateInterest(client);
+	}
+
+	/**
+	 * Read while the client has room for more requests, watch for write while
+	 * replies are not sent
+	 */
+	private void updateInterest(Client client) {
+		if (client.closed || !client.key.isValid())
+			return;
+
+		int ops = 0;
+		if (client.pending < MAX_PENDING) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (client.txBuffer.position() > 0) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		client.key.interestOps(ops);
+	}
+
+	/**
+	 * Close the connection, its queued transactions go to the other clients
+	 * waiting for them
+	 */
+	private void closeClient(Client client) {
+		if (client.closed)
+			return;
+
+		client.closed = true;
+		client.key.cancel();
+		try {
+			client.channel.close();
+		} catch (IOException e) {
+		}
+
+		synchronized (this) {
+			clients.remove(client);
+		}
+
+		for (int i = 0; i < client.queue.size(); i++) {
+			Transaction transaction = client.queue.get(i);
+
+			Client next = null;
+			for (int j = 0; j < transaction.waiters.size() && next == null; j++) {
+				if (!transaction.waiters.get(j).closed) {
+					next = transaction.waiters.get(j);
+				}
+			}
+
+			if (next != null) {
+				next.queue.add(transaction);
+			} else if (transaction.key != null) {
+				reads.remove(transaction.key);
+			}
+		}
+		client.queue.clear();
+	}
+
+	private static boolean isRead(int controlCode) {
+		switch (controlCode & 0x1F) {
+		case 0x11: // read data
+		case 0x12: // read follow-up data
+		case 0x13: // read address
+			return true;
+		}
+		return false;
+	}
+}
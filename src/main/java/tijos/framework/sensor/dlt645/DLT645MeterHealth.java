@@ -0,0 +1,258 @@
+package tijos.framework.sensor.dlt645;
+
+/**
+ * Reply latency and health of each meter. The reply timeout of a meter follows
+ * its measured latency: smoothed mean plus 4 times the mean deviation as in TCP,
+ * but not below the 95th percentile of the recent replies. The timeout doubles
+ * after each lost reply until the next reply arrives.
+ *
+ * A meter failing several requests in a row is marked unhealthy and should be
+ * skipped until its retry time, the hold-off doubles each time it fails again.
+ *
+ * @author TiJOS
+ */
+public class DLT645MeterHealth {
+
+	// recent latencies kept for the percentile
+	private static final int SAMPLES = 32;
+
+	// replies before the measured timeout is used
+	private static final int MIN_SAMPLES = 4;
+
+	private static final int MAX_BACKOFF_SHIFT = 4;
+
+	/**
+	 * Meter entry
+	 */
+	static class Entry {
+		long address;
+
+		// smoothed latency * 8 and mean deviation * 4 in ms
+		int srtt8;
+		int rttvar4;
+
+		final int[] samples = new int[SAMPLES];
+		int sampleCount;
+		int samplePos;
+
+		int timeOut;
+		int backoffShift;
+
+		int failures;
+		int holdOff;
+		long retryTime;
+	}
+
+	// entries keyed by meter address
+	private final DLT645AddressMap<Entry> entries = new DLT645AddressMap<Entry>(8);
+
+	private final int[] scratch = new int[SAMPLES];
+
+	private int initialTimeOut;
+	private int minTimeOut = 50;
+	private int maxTimeOut = 2000;
+
+	private int failureThreshold = 3;
+	private int minHoldOff = 10000;
+	private int maxHoldOff = 300000;
+
+	/**
+	 * Initialize with the timeout of the meters without measured latency
+	 *
+	 * @param initialTimeOut timeout in ms
+	 */
+	public DLT645MeterHealth(int initialTimeOut) {
+		this.initialTimeOut = initialTimeOut;
+	}
+
+	/**
+	 * Range of the measured timeouts
+	 *
+	 * @param minTimeOut min timeout in ms
+	 * @param maxTimeOut max timeout in ms
+	 */
+	public synchronized void setTimeOutRange(int minTimeOut, int maxTimeOut) {
+		this.minTimeOut = minTimeOut;
+		this.maxTimeOut = maxTimeOut;
+	}
+
+	/**
+	 * Failures to mark a meter unhealthy and the hold-off range
+	 *
+	 * @param failureThreshold consecutive failed requests
+	 * @param minHoldOff       first hold-off in ms
+	 * @param maxHoldOff       max hold-off in ms
+	 */
+	public synchronized void setUnhealthyPolicy(int failureThreshold, int minHoldOff, int maxHoldOff) {
+		this.failureThreshold = failureThreshold;
+		this.minHoldOff = minHoldOff;
+		this.maxHoldOff = maxHoldOff;
+	}
+
+	/**
+	 * Reply timeout of the meter
+	 *
+	 * @param address 6 bytes meter address
+	 * @return timeout in ms
+	 */
+	public synchronized int getTimeOut(byte[] address) {
+		Entry entry = find(address);
+		int timeOut = entry == null || entry.timeOut == 0 ? initialTimeOut : entry.timeOut;
+		if (entry != null && entry.backoffShift > 0) {
+			timeOut = Math.min(timeOut << entry.backoffShift, Math.max(maxTimeOut, initialTimeOut));
+		}
+		return timeOut;
+	}
+
+	/**
+	 * Smoothed reply latency of the meter
+	 *
+	 * @param address 6 bytes meter address
+	 * @return latency in ms, -1 if not measured
+	 */
+	public synchronized int getMeanLatency(byte[] address) {
+		Entry entry = find(address);
+		if (entry == null || entry.sampleCount == 0)
+			return -1;
+
+		return entry.srtt8 >> 3;
+	}
+
+	/**
+	 * Percentile of the recent reply latencies of the meter
+	 *
+	 * @param address 6 bytes meter address
+	 * @param percent 0 - 100
+	 * @return latency in ms, -1 if not measured
+	 */
+	public synchronized int getLatencyPercentile(byte[] address, int percent) {
+		Entry entry = find(address);
+		if (entry == null || entry.sampleCount == 0)
+			return -1;
+
+		return percentile(entry, percent);
+	}
+
+	/**
+	 * Whether the meter is not marked unhealthy
+	 *
+	 * @param address 6 bytes meter address
+	 * @return
+	 */
+	public synchronized boolean isHealthy(byte[] address) {
+		Entry entry = find(address);
+		return entry == null || entry.retryTime == 0;
+	}
+
+	/**
+	 * Time the unhealthy meter could be tried again
+	 *
+	 * @param address 6 bytes meter address
+	 * @return time in ms, 0 if the meter is healthy
+	 */
+	public synchronized long getRetryTime(byte[] address) {
+		Entry entry = find(address);
+		return entry == null ? 0 : entry.retryTime;
+	}
+
+	/**
+	 * The meter replied, the meter is healthy again
+	 *
+	 * @param address 6 bytes meter address
+	 * @param latency time in ms from the request sent to the reply decoded
+	 */
+	public synchronized void replied(byte[] address, int latency) {
+		Entry entry = entry(address);
+
+		if (entry.sampleCount == 0) {
+			entry.srtt8 = latency << 3;
+			entry.rttvar4 = latency << 1;
+		} else {
+			int delta = latency - (entry.srtt8 >> 3);
+			entry.srtt8 += delta;
+			if (delta < 0) {
+				delta = -delta;
+			}
+			delta -= entry.rttvar4 >> 2;
+			entry.rttvar4 += delta;
+		}
+
+		entry.samples[entry.samplePos] = latency;
+		entry.samplePos = (entry.samplePos + 1) % SAMPLES;
+		if (entry.sampleCount < SAMPLES) {
+			entry.sampleCount++;
+		}
+
+		if (entry.sampleCount >= MIN_SAMPLES) {
+			int timeOut = Math.max((entry.srtt8 >> 3) + entry.rttvar4, percentile(entry, 95) * 5 / 4);
+			entry.timeOut = Math.max(minTimeOut, Math.min(timeOut, maxTimeOut));
+		}
+
+		entry.backoffShift = 0;
+		entry.failures = 0;
+		entry.holdOff = 0;
+		entry.retryTime = 0;
+	}
+
+	/**
+	 * The reply of one attempt was lost, the timeout of the next attempt doubles
+	 *
+	 * @param address 6 bytes meter address
+	 */
+	public synchronized void timedOut(byte[] address) {
+		Entry entry = entry(address);
+		if (entry.backoffShift < MAX_BACKOFF_SHIFT) {
+			entry.backoffShift++;
+		}
+	}
+
+	/**
+	 * The request failed after all attempts, the meter is marked unhealthy when
+	 * the consecutive failures reach the threshold
+	 *
+	 * @param address 6 bytes meter address
+	 */
+	public synchronized void failed(byte[] address) {
+		Entry entry = entry(address);
+		if (++entry.failures < failureThreshold)
+			return;
+
+		entry.holdOff = entry.holdOff == 0 ? minHoldOff : Math.min(entry.holdOff * 2, maxHoldOff);
+		entry.retryTime = System.currentTimeMillis() + entry.holdOff;
+	}
+
+	private int percentile(Entry entry, int percent) {
+		int n = entry.sampleCount;
+
+		// insertion sort, the samples are few
+		int[] sorted = scratch;
+		for (int i = 0; i < n; i++) {
+			int v = entry.samples[i];
+			int j = i - 1;
+			while (j >= 0 && sorted[j] > v) {
+				sorted[j + 1] = sorted[j];
+				j--;
+			}
+			sorted[j + 1] = v;
+		}
+
+		int index = (n * percent + 99) / 100 - 1;
+		return sorted[Math.max(0, Math.min(index, n - 1))];
+	}
+
+	private Entry entry(byte[] address) {
+		long key = DLT645Frame.addressKey(address);
+		Entry entry = entries.get(key);
+		if (entry != null)
+			return entry;
+
+		entry = new Entry();
+		entry.address = key;
+		entries.put(key, entry);
+		return entry;
+	}
+
+	private Entry find(byte[] address) {
+		return entries.get(DLT645Frame.addressKey(address));
+	}
+}
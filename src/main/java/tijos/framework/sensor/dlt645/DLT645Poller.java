@@ -0,0 +1,392 @@
+package tijos.framework.sensor.dlt645;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+import tijos.framework.devicecenter.TiUART;
+import tijos.framework.util.Delay;
+
+/**
+ * Bus level poller for many meters sharing one RS-485 UART. Meters are polled
+ * one per time slot, the due meter with the highest priority goes first, then
+ * the one with the earliest deadline, and meters with the same priority and
+ * deadline are served round-robin. The polls go in the polling lane of the
+ * bus, control frames and interactive reads are sent first.
+ *
+ * The polling loop runs on its own thread or on an executor and exits once
+ * stopped.
+ *
+ * @author TiJOS
+ */
+public class DLT645Poller implements Runnable {
+
+	/**
+	 * Meter entry in the polling table
+	 */
+	static class MeterEntry {
+		byte[] address;
+		int[] dataTags;
+		int priority;
+		int period;
+		int deadline;
+
+		long nextDue;
+		int pollCount;
+		int missCount;
+	}
+
+	// max idle time between two slots in ms
+	private static final int DLT645_POLL_IDLE_SLOT = 10;
+
+	private final TiDLT645 dlt645;
+	private final DLT645MeterHealth health;
+
+	private MeterEntry[] meters = new MeterEntry[8];
+	private int meterCount = 0;
+
+	// index of the last polled meter for round-robin
+	private int lastIndex = -1;
+
+	// keep the loop running, cleared by stop
+	private volatile boolean keeprunning = false;
+
+	// thread running the loop, guarded by this
+	private Thread thread = null;
+
+	private IMeterPollListener eventListener = null;
+
+	/***** statistics *******/
+	private long statStart = System.currentTimeMillis();
+	private long busyTime = 0;
+	private int pollCount = 0;
+
+	/**
+	 * Initialize with Uart, the poller owns the UART
+	 * 
+	 * @param uart
+	 */
+	public DLT645Poller(TiUART uart) {
+		this(new TiDLT645(uart));
+	}
+
+	/**
+	 * Initialize with DLT645 bus, such as the one the meters are discovered on
+	 * 
+	 * @param dlt645
+	 */
+	public DLT645Poller(TiDLT645 dlt645) {
+		this.dlt645 = dlt645;
+		this.health = dlt645.getMeterHealth();
+	}
+
+	/**
+	 * Event listener for polled meter data
+	 * 
+	 * @param listener
+	 */
+	public void setEventListener(IMeterPollListener listener) {
+		this.eventListener = listener;
+	}
+
+	/**
+	 * Add a meter to the polling table
+	 * 
+	 * @param address  6 bytes meter address
+	 * @param dataTags data tags to read in each poll
+	 * @param priority higher value is polled first when several meters are due
+	 * @param period   polling period in ms
+	 * @param deadline max delay in ms after the meter is due
+	 * @throws IOException
+	 */
+	public synchronized void addMeter(byte[] address, int[] dataTags, int priority, int period, int deadline)
+			throws IOException {
+		if (address == null || address.length != 6)
+			throw new IOException("invalid meter address length");
+
+		if (dataTags == null || dataTags.length == 0)
+			throw new IOException("no data tags to poll");
+
+		if (period <= 0 || deadline < 0)
+			throw new IOException("invalid period or deadline");
+
+		if (meterCount == meters.length) {
+			MeterEntry[] grown = new MeterEntry[meters.length * 2];
+			System.arraycopy(meters, 0, grown, 0, meterCount);
+			meters = grown;
+		}
+
+		MeterEntry entry = new MeterEntry();
+		entry.address = new byte[6];
+		System.arraycopy(address, 0, entry.address, 0, 6);
+		entry.dataTags = new int[dataTags.length];
+		System.arraycopy(dataTags, 0, entry.dataTags, 0, dataTags.length);
+		entry.priority = priority;
+		entry.period = period;
+		entry.deadline = deadline;
+		entry.nextDue = System.currentTimeMillis();
+
+		meters[meterCount++] = entry;
+	}
+
+	/**
+	 * Remove a meter from the polling table
+	 * 
+	 * @param address meter address
+	 */
+	public synchronized void removeMeter(byte[] address) {
+		for (int i = 0; i < meterCount; i++) {
+			if (sameAddress(meters[i].address, address)) {
+				System.arraycopy(meters, i + 1, meters, i, meterCount - i - 1);
+				meters[--meterCount] = null;
+				lastIndex = -1;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Start polling on a new thread
+	 */
+	public void start() {
+		start(null);
+	}
+
+	/**
+	 * Start polling, nothing is done if it is started already
+	 * 
+	 * @param executor executor to run the polling loop, null for a new thread
+	 */
+	public void start(Executor executor) {
+		synchronized (this) {
+			if (keeprunning)
+				return;
+
+			keeprunning = true;
+		}
+
+		try {
+			if (executor == null) {
+				new Thread(this).start();
+			} else {
+				executor.execute(this);
+			}
+		} catch (RuntimeException e) {
+			keeprunning = false;
+			throw e;
+		}
+	}
+
+	/**
+	 * Stop polling and wait for the loop to exit after the current slot unless
+	 * called by the loop itself, such as from a poll listener
+	 */
+	public void stop() {
+		Thread current = Thread.currentThread();
+
+		synchronized (this) {
+			keeprunning = false;
+
+			while (thread != null && thread != current) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Whether polling is started and not stopped
+	 * 
+	 * @return
+	 */
+	public boolean isRunning() {
+		return keeprunning;
+	}
+
+	@Override
+	public void run() {
+		synchronized (this) {
+			// stopped before the executor ran the task, or restarted while the
+			// loop was still running
+			if (thread != null || !keeprunning)
+				return;
+
+			thread = Thread.currentThread();
+		}
+
+		try {
+			while (keeprunning) {
+				long now = System.currentTimeMillis();
+
+				MeterEntry entry = nextMeter(now);
+				if (entry == null) {
+					long wait = nextDueTime() - now;
+					Delay.msDelay((int) Math.max(1, Math.min(wait, DLT645_POLL_IDLE_SLOT)));
+					continue;
+				}
+
+				poll(entry, now);
+			}
+		} finally {
+			synchronized (this) {
+				thread = null;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Achieved poll rate since the statistics was reset
+	 * 
+	 * @return meter polls per second
+	 */
+	public synchronized double getPollRate() {
+		long elapsed = System.currentTimeMillis() - statStart;
+		if (elapsed <= 0)
+			return 0;
+
+		return pollCount * 1000.0 / elapsed;
+	}
+
+	/**
+	 * Bus utilisation since the statistics was reset
+	 * 
+	 * @return ratio of bus busy time from 0 to 1
+	 */
+	public synchronized double getBusUtilisation() {
+		long elapsed = System.currentTimeMillis() - statStart;
+		if (elapsed <= 0)
+			return 0;
+
+		return Math.min(1.0, (double) busyTime / elapsed);
+	}
+
+	/**
+	 * Number of missed deadlines of the meter
+	 * 
+	 * @param address meter address
+	 * @return missed deadlines, -1 if the meter is not found
+	 */
+	public synchronized int getMissCount(byte[] address) {
+		for (int i = 0; i < meterCount; i++) {
+			if (sameAddress(meters[i].address, address))
+				return meters[i].missCount;
+		}
+		return -1;
+	}
+
+	/**
+	 * Reset poll rate and bus utilisation statistics
+	 */
+	public synchronized void resetStatistics() {
+		statStart = System.currentTimeMillis();
+		busyTime = 0;
+		pollCount = 0;
+	}
+
+	/**
+	 * Poll all data tags of the meter in one slot
+	 * 
+	 * @param entry
+	 * @param now
+	 */
+	private void poll(MeterEntry entry, long now) {
+		long late = now - (entry.nextDue + entry.deadline);
+		if (late > 0) {
+			entry.missCount++;
+			if (eventListener != null) {
+				eventListener.onDeadlineMissed(entry.address, late);
+			}
+		}
+
+		byte[][] meterData;
+		try {
+			meterData = dlt645.readMeterData(entry.address, entry.dataTags, TiDLT645.DLT645_LANE_POLLING);
+		} catch (IOException e) {
+			meterData = new byte[entry.dataTags.length][];
+		}
+
+		long end = System.currentTimeMillis();
+
+		synchronized (this) {
+			busyTime += end - now;
+			pollCount++;
+			entry.pollCount++;
+
+			// keep the schedule without drift unless the meter is behind
+			entry.nextDue += entry.period;
+			if (entry.nextDue < end) {
+				entry.nextDue = end;
+			}
+		}
+
+		if (eventListener != null) {
+			for (int i = 0; i < entry.dataTags.length; i++) {
+				eventListener.onMeterData(entry.address, entry.dataTags[i], meterData[i]);
+			}
+		}
+	}
+
+	/**
+	 * Select the meter for the next slot
+	 * 
+	 * @param now
+	 * @return meter entry or null if no meter is due
+	 */
+	private synchronized MeterEntry nextMeter(long now) {
+		MeterEntry best = null;
+		int bestIndex = -1;
+
+		// scan starts after the last polled meter to keep round-robin order
+		for (int n = 0; n < meterCount; n++) {
+			int i = (lastIndex + 1 + n) % meterCount;
+			MeterEntry entry = meters[i];
+			if (entry.nextDue > now)
+				continue;
+
+			// skip the unhealthy meter until its retry time instead of burning the
+			// reply timeout each cycle
+			long retryTime = health.getRetryTime(entry.address);
+			if (retryTime > now) {
+				entry.nextDue = retryTime;
+				continue;
+			}
+
+			if (best == null || entry.priority > best.priority || (entry.priority == best.priority
+					&& entry.nextDue + entry.deadline < best.nextDue + best.deadline)) {
+				best = entry;
+				bestIndex = i;
+			}
+		}
+
+		if (best != null) {
+			lastIndex = bestIndex;
+		}
+
+		return best;
+	}
+
+	/**
+	 * Earliest due time of all meters
+	 * 
+	 * @return
+	 */
+	private synchronized long nextDueTime() {
+		long due = Long.MAX_VALUE;
+		for (int i = 0; i < meterCount; i++) {
+			if (meters[i].nextDue < due)
+				due = meters[i].nextDue;
+		}
+		return due;
+	}
+
+	private static boolean sameAddress(byte[] a1, byte[] a2) {
+		for (int i = 0; i < 6; i++) {
+			if (a1[i] != a2[i])
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,508 @@
+package tijos.framework.sensor.dlt645;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+/**
+ * One thread serving many DLT645 buses over selectable channels, such as
+ * SocketChannels to transparent serial servers or Pipes to local ports. The
+ * bytes received on each bus are decoded as they arrive, the requests are sent
+ * and timed out by the reactor, and frames the channel could not accept at once
+ * are written when it becomes writable. No thread is needed per bus.
+ *
+ * A registered bus is used as if its UART read thread were running, it must not
+ * be started. While the reactor is stopped the requests of its buses fail.
+ *
+ * @author TiJOS
+ */
+public class DLT645Reactor implements Runnable {
+
+	/**
+	 * Registered bus
+	 */
+	static class Link {
+		final DLT645Reactor reactor;
+		final TiDLT645 dlt645;
+		final ChannelTransport transport;
+
+		SelectionKey readKey;
+		SelectionKey writeKey; // same as readKey for a bidirectional channel
+
+		// pass the link was last made ready in, reactor thread only
+		long readyPass;
+
+		// guarded by the reactor
+		boolean woken;
+		boolean closing;
+
+		Link(DLT645Reactor reactor, TiDLT645 dlt645, ChannelTransport transport) {
+			this.reactor = reactor;
+			this.dlt645 = dlt645;
+			this.transport = transport;
+		}
+
+		/**
+		 * Have the reactor serve the bus, such as for a new request
+		 */
+		void wakeup() {
+			reactor.wakeup(this);
+		}
+	}
+
+	private final Selector selector;
+
+	// links served, reactor thread only
+	private final ArrayList<Link> links = new ArrayList<Link>();
+	private final ArrayList<Link> ready = new ArrayList<Link>();
+	private final ArrayList<Link> opening = new ArrayList<Link>();
+	private long pass = 0;
+
+	// earliest time a link needs service, reactor thread only
+	private long nextTimer = Long.MAX_VALUE;
+
+	// links registered or woken by other threads, guarded by this
+	private final ArrayList<Link> registering = new ArrayList<Link>();
+	private final ArrayList<Link> woken = new ArrayList<Link>();
+
+	// keep the loop running, cleared by stop
+	private volatile boolean keeprunning = false;
+
+	// the buses were stopped with the reactor, guarded by this
+	private boolean paused = false;
+
+	// thread running the loop, guarded by this
+	private Thread thread = null;
+
+	/**
+	 * Initialize with a new selector
+	 *
+	 * @throws IOException
+	 */
+	public DLT645Reactor() throws IOException {
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Serve the bus by the reactor, its transport must be a ChannelTransport
+	 * over a selectable receive channel
+	 *
+	 * @param dlt645
+	 * @throws IOException if the transport is not supported or the bus is served
+	 *                     already
+	 */
+	public void register(TiDLT645 dlt645) throws IOException {
+		if (!(dlt645.transport instanceof ChannelTransport))
+			throw new IOException("DLT645 Reactor needs a channel transport");
+
+		ChannelTransport transport = (ChannelTransport) dlt645.transport;
+		if (!(transport.getReadChannel() instanceof SelectableChannel))
+			throw new IOException("DLT645 Reactor needs a selectable channel");
+
+		if (!dlt645.readerStarted())
+			throw new IOException("DLT645 bus is served already");
+
+		Link link = new Link(this, dlt645, transport);
+		synchronized (this) {
+			registering.add(link);
+
+			// served once the reactor is started again
+			if (paused) {
+				dlt645.readerStopped();
+			}
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * Stop serving the bus, its pending requests fail. The channels are not
+	 * closed.
+	 *
+	 * @param dlt645
+	 */
+	public void unregister(TiDLT645 dlt645) {
+		if (!(dlt645.transport instanceof ChannelTransport))
+			return;
+
+		Link link = ((ChannelTransport) dlt645.transport).link;
+		if (link == null || link.reactor != this)
+			return;
+
+		synchronized (this) {
+			link.closing = true;
+		}
+		wakeup(link);
+	}
+
+	/**
+	 * Start the reactor on a new thread
+	 */
+	public void start() {
+		start(null);
+	}
+
+	/**
+	 * Start the reactor, nothing is done if it is started already
+	 *
+	 * @param executor executor to run the reactor, null for a new thread
+	 */
+	public void start(Executor executor) {
+		Thread current = Thread.currentThread();
+
+		synchronized (this) {
+			if (keeprunning)
+				return;
+
+			// the loop stopped last is still exiting
+			while (thread != null && thread != current) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+
+			keeprunning = true;
+
+			// restarted by the reactor itself, its loop goes on
+			if (thread != null)
+				return;
+		}
+
+		resume();
+
+		try {
+			if (executor == null) {
+				new Thread(this).start();
+			} else {
+				executor.execute(this);
+			}
+		} catch (RuntimeException e) {
+			keeprunning = false;
+			pause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Stop the reactor and wait for it to exit unless called by the reactor
+	 * itself. The queued and sent requests of the buses fail, and so do new ones
+	 * until the reactor is started again. The buses stay registered.
+	 */
+	public void stop() {
+		Thread current = Thread.currentThread();
+
+		keeprunning = false;
+		selector.wakeup();
+
+		boolean exited;
+		synchronized (this) {
+			while (thread != null && thread != current) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+
+			// not run yet by the executor, the loop pauses the buses otherwise
+			exited = thread == null && !paused;
+		}
+
+		if (exited) {
+			pause();
+		}
+	}
+
+	/**
+	 * Stop the reactor, unregister all the buses and close the selector
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		stop();
+
+		synchronized (this) {
+			for (int i = 0; i < registering.size(); i++) {
+				registering.get(i).dlt645.readerStopped();
+			}
+			registering.clear();
+			woken.clear();
+		}
+
+		for (int i = links.size() - 1; i >= 0; i--) {
+			remove(links.get(i));
+		}
+
+		selector.close();
+	}
+
+	/**
+	 * Number of buses served
+	 *
+	 * @return
+	 */
+	public synchronized int getLinkCount() {
+		return links.size() + registering.size();
+	}
+
+	@Override
+	public void run() {
+		synchronized (this) {
+			if (thread != null || !keeprunning)
+				return;
+
+			thread = Thread.currentThread();
+		}
+
+		try {
+			while (keeprunning) {
+				try {
+					serve();
+				} catch (IOException e) {
+					DLT645Trace.error("DLT645 Reactor select failed", e);
+					break;
+				}
+			}
+		} finally {
+			pause();
+
+			synchronized (this) {
+				thread = null;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Have the reactor serve the link on its next pass
+	 *
+	 * @param link
+	 */
+	void wakeup(Link link) {
+		synchronized (this) {
+			if (link.woken)
+				return;
+
+			link.woken = true;
+			woken.add(link);
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * One pass: wait for channel events or timers, then serve the links ready
+	 *
+	 * @throws IOException
+	 */
+	private void serve() throws IOException {
+		long now = System.currentTimeMillis();
+		if (nextTimer == Long.MAX_VALUE) {
+			selector.select();
+		} else if (nextTimer > now) {
+			selector.select(nextTimer - now);
+		} else {
+			selector.selectNow();
+		}
+
+		pass++;
+		ready.clear();
+
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			addReady((Link) key.attachment());
+		}
+
+		opening.clear();
+		synchronized (this) {
+			opening.addAll(registering);
+			registering.clear();
+
+			for (int i = 0; i < woken.size(); i++) {
+				Link link = woken.get(i);
+				link.woken = false;
+				addReady(link);
+			}
+			woken.clear();
+		}
+
+		for (int i = 0; i < opening.size(); i++) {
+			open(opening.get(i));
+		}
+
+		// links with a reply timeout or queued frames due
+		now = System.currentTimeMillis();
+		if (now >= nextTimer) {
+			nextTimer = Long.MAX_VALUE;
+			for (int i = 0; i < links.size(); i++) {
+				Link link = links.get(i);
+				long time = link.dlt645.getServiceTime();
+				if (time <= now) {
+					addReady(link);
+				} else if (time < nextTimer) {
+					nextTimer = time;
+				}
+			}
+		}
+
+		for (int i = 0; i < ready.size(); i++) {
+			Link link = ready.get(i);
+
+			boolean closing;
+			synchronized (this) {
+				closing = link.closing;
+			}
+
+			if (closing) {
+				remove(link);
+				continue;
+			}
+
+			try {
+				link.transport.flushPending();
+				link.dlt645.poll();
+				updateInterest(link, link.transport.flushPending());
+
+				long time = link.dlt645.getServiceTime();
+				if (time < nextTimer) {
+					nextTimer = time;
+				}
+			} catch (IOException e) {
+				DLT645Trace.error("DLT645 Reactor link failed", e);
+				remove(link);
+			} catch (RuntimeException e) {
+				DLT645Trace.error("DLT645 frame listener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Fail the requests of all the buses as the reactor stops, new requests fail
+	 * until it is started again
+	 */
+	private void pause() {
+		for (int i = 0; i < links.size(); i++) {
+			links.get(i).dlt645.readerStopped();
+		}
+
+		synchronized (this) {
+			paused = true;
+			for (int i = 0; i < registering.size(); i++) {
+				registering.get(i).dlt645.readerStopped();
+			}
+		}
+	}
+
+	/**
+	 * Serve the buses again before the reactor restarts, a bus whose UART read
+	 * thread was started meanwhile is dropped
+	 */
+	private void resume() {
+		ArrayList<Link> waiting;
+		synchronized (this) {
+			if (!paused)
+				return;
+
+			paused = false;
+			waiting = new ArrayList<Link>(registering);
+		}
+
+		for (int i = links.size() - 1; i >= 0; i--) {
+			Link link = links.get(i);
+			if (!link.dlt645.readerStarted()) {
+				DLT645Trace.trace(DLT645Trace.ERROR, "DLT645 bus is served already");
+				links.remove(i);
+				cancel(link);
+				link.transport.detach();
+			}
+		}
+
+		for (int i = 0; i < waiting.size(); i++) {
+			Link link = waiting.get(i);
+			if (!link.dlt645.readerStarted()) {
+				DLT645Trace.trace(DLT645Trace.ERROR, "DLT645 bus is served already");
+				synchronized (this) {
+					registering.remove(link);
+				}
+			}
+		}
+	}
+
+	private void addReady(Link link) {
+		if (link.readyPass == pass)
+			return;
+
+		link.readyPass = pass;
+		ready.add(link);
+	}
+
+	/**
+	 * Register the channels of the link with the selector
+	 */
+	private void open(Link link) {
+		try {
+			SelectableChannel in = (SelectableChannel) link.transport.getReadChannel();
+			link.readKey = in.register(selector, SelectionKey.OP_READ, link);
+
+			Object out = link.transport.getWriteChannel();
+			if (out == in) {
+				link.writeKey = link.readKey;
+			} else if (out instanceof SelectableChannel) {
+				((SelectableChannel) out).configureBlocking(false);
+				link.writeKey = ((SelectableChannel) out).register(selector, 0, link);
+			}
+
+			link.transport.attach(link);
+			links.add(link);
+			addReady(link);
+		} catch (IOException e) {
+			DLT645Trace.error("DLT645 Reactor register failed", e);
+			cancel(link);
+			link.dlt645.readerStopped();
+		}
+	}
+
+	/**
+	 * Watch the send channel of the link while it has bytes not accepted
+	 */
+	private void updateInterest(Link link, boolean pending) {
+		if (link.writeKey == null)
+			return;
+
+		if (link.writeKey == link.readKey) {
+			link.readKey.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		} else {
+			link.writeKey.interestOps(pending ? SelectionKey.OP_WRITE : 0);
+		}
+	}
+
+	/**
+	 * Stop serving the link, its pending requests fail
+	 */
+	private void remove(Link link) {
+		synchronized (this) {
+			// a removed link could still be woken in this pass
+			link.closing = true;
+		}
+
+		links.remove(link);
+		cancel(link);
+		link.transport.detach();
+		link.dlt645.readerStopped();
+	}
+
+	private void cancel(Link link) {
+		if (link.readKey != null) {
+			link.readKey.cancel();
+		}
+		if (link.writeKey != null) {
+			link.writeKey.cancel();
+		}
+	}
+}
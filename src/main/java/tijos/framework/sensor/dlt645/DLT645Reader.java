@@ -0,0 +1,151 @@
+package tijos.framework.sensor.dlt645;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.Executor;
+
+import tijos.framework.util.Delay;
+
+/**
+ * UART read loop of a DLT645 bus as a task. It runs on its own thread or on an
+ * executor, such as a virtual thread per task executor when a large number of
+ * buses are served. The loop waits in the transport while the bus is idle and
+ * exits once stopped, or once the transport is closed, which fails the pending
+ * requests as a stop does.
+ *
+ * @author TiJOS
+ */
+class DLT645Reader implements Runnable {
+
+	private static final int ERROR_DELAY = 100; // delay in ms after a read error
+
+	private final TiDLT645 dlt645;
+
+	// keep the loop running, cleared by stop
+	private volatile boolean keeprunning = false;
+
+	// thread running the loop, guarded by this
+	private Thread thread = null;
+
+	DLT645Reader(TiDLT645 dlt645) {
+		this.dlt645 = dlt645;
+	}
+
+	/**
+	 * Start the loop, nothing is done if it is started already
+	 *
+	 * @param executor executor to run the loop, null for a new thread
+	 */
+	void start(Executor executor) {
+		synchronized (this) {
+			if (keeprunning)
+				return;
+
+			if (!dlt645.readerStarted()) {
+				DLT645Trace.trace(DLT645Trace.ERROR, "DLT645 bus is served by a reactor");
+				return;
+			}
+
+			keeprunning = true;
+		}
+
+		try {
+			if (executor == null) {
+				new Thread(this).start();
+			} else {
+				executor.execute(this);
+			}
+		} catch (RuntimeException e) {
+			stop();
+			throw e;
+		}
+	}
+
+	/**
+	 * Stop the loop and wait for it to exit unless called by the loop itself,
+	 * the pending requests are failed. Nothing is done if it is not started.
+	 */
+	void stop() {
+		Thread current = Thread.currentThread();
+
+		boolean started;
+		synchronized (this) {
+			started = keeprunning;
+			keeprunning = false;
+		}
+
+		if (!started)
+			return;
+
+		dlt645.transport.wakeup();
+
+		synchronized (this) {
+			while (thread != null && thread != current) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+
+		dlt645.readerStopped();
+	}
+
+	/**
+	 * Whether the loop is started and not stopped
+	 *
+	 * @return
+	 */
+	boolean isStarted() {
+		return keeprunning;
+	}
+
+	@Override
+	public void run() {
+		synchronized (this) {
+			// stopped before the executor ran the task, or restarted while the
+			// loop was still running
+			if (thread != null || !keeprunning)
+				return;
+
+			thread = Thread.currentThread();
+		}
+
+		boolean closed = false;
+		try {
+			while (keeprunning) {
+				try {
+					dlt645.receive();
+				} catch (EOFException e) {
+					DLT645Trace.error("DLT645 transport closed", e);
+					closed = true;
+					break;
+				} catch (ClosedChannelException e) {
+					DLT645Trace.error("DLT645 transport closed", e);
+					closed = true;
+					break;
+				} catch (IOException e) {
+					DLT645Trace.error("DLT645 read failed", e);
+					// keep a broken port from spinning the loop
+					Delay.msDelay(ERROR_DELAY);
+				} catch (RuntimeException e) {
+					DLT645Trace.error("DLT645 frame listener failed", e);
+				}
+			}
+		} finally {
+			if (closed) {
+				dlt645.readerStopped();
+			}
+
+			synchronized (this) {
+				if (closed) {
+					keeprunning = false;
+				}
+				thread = null;
+				notifyAll();
+			}
+		}
+	}
+}
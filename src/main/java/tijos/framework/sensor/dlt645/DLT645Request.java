@@ -0,0 +1,243 @@
+package tijos.framework.sensor.dlt645;
+
+import java.io.IOException;
+
+/**
+ * Request to a meter, correlated to its reply by meter address, function code
+ * and data tag. The receiving side completes the request as soon as the
+ * matching frame is decoded, or fails it when the reply timeout expires.
+ *
+ * @author TiJOS
+ */
+public class DLT645Request {
+
+	byte[] address;
+	int funCode;
+	int dataTag;
+
+	// request packet to send
+	byte[] pkt;
+
+	// reply timeout in ms counted from the time the request is sent
+	int timeOut;
+
+	// time in ms the request is sent and the reply must arrive before
+	long sentTime;
+	long deadline;
+
+	// raw reply frame and the view over it
+	byte[] frame;
+	int frameLen;
+	final DLT645Frame view = new DLT645Frame();
+
+	// next request in the send queue
+	DLT645Request next;
+
+	// reply frame is kept without decoding
+	boolean raw;
+
+	// reply is delivered to the frame and event listeners, such as of the
+	// frames sent without waiting for the reply
+	boolean forward;
+
+	// bus lane and the time in ms the request asked for the bus
+	int lane;
+	long queuedTime;
+
+	// sent for the caller owning the bus
+	boolean owned;
+
+	// frame expecting no reply, such as an alarm ack, it is packed with the
+	// other ones into one write
+	boolean noReply;
+
+	private byte[] data;
+	private IOException error;
+	private boolean done;
+
+	private IRequestListener listener;
+
+	/**
+	 * Prepare the request for a new transaction
+	 *
+	 * @param address meter address
+	 * @param funCode function code
+	 * @param dataTag data tag
+	 * @param pkt     request packet
+	 * @param timeOut reply timeout in ms
+	 */
+	synchronized void prepare(byte[] address, int funCode, int dataTag, byte[] pkt, int timeOut) {
+		this.address = address;
+		this.funCode = funCode;
+		this.dataTag = dataTag;
+		this.pkt = pkt;
+		this.timeOut = timeOut;
+		this.deadline = 0;
+		this.frameLen = 0;
+		this.next = null;
+		this.raw = false;
+		this.forward = false;
+		this.lane = TiDLT645.DLT645_LANE_INTERACTIVE;
+		this.queuedTime = 0;
+		this.owned = false;
+		this.noReply = false;
+		this.data = null;
+		this.error = null;
+		this.done = false;
+		this.listener = null;
+	}
+
+	/**
+	 * Start the reply timeout, called when the request is sent
+	 */
+	void startTimer() {
+		this.sentTime = System.currentTimeMillis();
+		this.deadline = sentTime + timeOut;
+	}
+
+	/**
+	 * Time from the request sent to now, called when the reply is decoded
+	 *
+	 * @return latency in ms
+	 */
+	int getLatency() {
+		return (int) (System.currentTimeMillis() - sentTime);
+	}
+
+	/**
+	 * Copy the reply frame held by the decoder
+	 *
+	 * @param decoder
+	 */
+	void setFrame(DLT645Decoder decoder) {
+		frameLen = decoder.getFrameLength();
+		if (frame == null || frame.length < frameLen) {
+			frame = new byte[frameLen];
+		}
+		System.arraycopy(decoder.getBuffer(), 0, frame, 0, frameLen);
+		view.wrap(frame, 0, frameLen);
+	}
+
+	/**
+	 * Finish the request, wake the waiting callers and notify the listener
+	 *
+	 * @param data  decoded meter data
+	 * @param error error if the request failed
+	 */
+	void finish(byte[] data, IOException error) {
+		IRequestListener l;
+		synchronized (this) {
+			this.data = data;
+			this.error = error;
+			this.done = true;
+			notifyAll();
+
+			l = listener;
+		}
+
+		if (l != null) {
+			l.onRequestDone(this);
+		}
+	}
+
+	/**
+	 * Set the completion listener, it is called immediately if the request is
+	 * already done
+	 *
+	 * @param listener
+	 */
+	public void setListener(IRequestListener listener) {
+		boolean finished;
+		synchronized (this) {
+			this.listener = listener;
+			finished = done;
+		}
+
+		if (finished && listener != null) {
+			listener.onRequestDone(this);
+		}
+	}
+
+	/**
+	 * Copy of the reply frame from the start byte to the end byte, wait until the
+	 * request is done
+	 *
+	 * @return reply frame, null if no reply arrived
+	 * @throws IOException if waiting is interrupted
+	 */
+	public byte[] getReplyFrame() throws IOException {
+		try {
+			await();
+		} catch (InterruptedException e) {
+			throw new IOException("DLT645 waiting for reply interrupted");
+		}
+
+		synchronized (this) {
+			if (error != null || frameLen == 0)
+				return null;
+
+			byte[] reply = new byte[frameLen];
+			System.arraycopy(frame, 0, reply, 0, frameLen);
+			return reply;
+		}
+	}
+
+	/**
+	 * Meter address of the request
+	 *
+	 * @return
+	 */
+	public byte[] getAddress() {
+		return address;
+	}
+
+	/**
+	 * Data tag of the request
+	 *
+	 * @return
+	 */
+	public int getDataTag() {
+		return dataTag;
+	}
+
+	/**
+	 * Whether the request is done
+	 *
+	 * @return
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Wait until the request is done
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void await() throws InterruptedException {
+		while (!done) {
+			wait();
+		}
+	}
+
+	/**
+	 * Get the meter data, wait until the request is done
+	 *
+	 * @return meter data
+	 * @throws IOException if the request failed or timed out
+	 */
+	public byte[] getData() throws IOException {
+		try {
+			await();
+		} catch (InterruptedException e) {
+			throw new IOException("DLT645 waiting for reply interrupted");
+		}
+
+		synchronized (this) {
+			if (error != null)
+				throw error;
+
+			return data;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package tijos.framework.sensor.dlt645;
+
+/**
+ * Bounded cache of encoded request frames keyed by meter address, function
+ * code and data tag. Periodic polling produces the same bytes every time, so a
+ * hit is written to the transport as is. Cached frames are shared and must not
+ * be modified.
+ *
+ * The cache is direct mapped, a new frame replaces the one in its slot.
+ *
+ * @author TiJOS
+ */
+public class DLT645RequestCache {
+
+	private final long[] addresses;
+	private final int[] funCodes;
+	private final int[] dataTags;
+	private final byte[][] frames;
+
+	private final int mask;
+
+	/***** statistics *******/
+	private int hitCount = 0;
+	private int missCount = 0;
+
+	/**
+	 * Initialize with capacity
+	 *
+	 * @param capacity number of frames, rounded up to power of 2
+	 */
+	public DLT645RequestCache(int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+
+		addresses = new long[size];
+		funCodes = new int[size];
+		dataTags = new int[size];
+		frames = new byte[size][];
+		mask = size - 1;
+	}
+
+	/**
+	 * Get the cached frame
+	 *
+	 * @param address meter address
+	 * @param funCode function code
+	 * @param dataTag data tag
+	 * @return frame or null if not cached
+	 */
+	public synchronized byte[] get(byte[] address, int funCode, int dataTag) {
+		long key = DLT645Frame.addressKey(address);
+		int slot = slot(key, funCode, dataTag);
+
+		byte[] frame = frames[slot];
+		if (frame != null && addresses[slot] == key && funCodes[slot] == funCode && dataTags[slot] == dataTag) {
+			hitCount++;
+			return frame;
+		}
+
+		missCount++;
+		return null;
+	}
+
+	/**
+	 * Put the encoded frame into the cache
+	 *
+	 * @param address meter address
+	 * @param funCode function code
+	 * @param dataTag data tag
+	 * @param frame   encoded frame
+	 */
+	public synchronized void put(byte[] address, int funCode, int dataTag, byte[] frame) {
+		long key = DLT645Frame.addressKey(address);
+		int slot = slot(key, funCode, dataTag);
+
+		addresses[slot] = key;
+		funCodes[slot] = funCode;
+		dataTags[slot] = dataTag;
+		frames[slot] = frame;
+	}
+
+	/**
+	 * Drop all cached frames
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = null;
+		}
+	}
+
+	/**
+	 * Number of cache hits
+	 *
+	 * @return
+	 */
+	public synchronized int getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Number of cache misses
+	 *
+	 * @return
+	 */
+	public synchronized int getMissCount() {
+		return missCount;
+	}
+
+	private int slot(long key, int funCode, int dataTag) {
+		long h = key * 31 + funCode;
+		h = h * 31 + dataTag;
+		int hash = (int) (h ^ (h >>> 32));
+		hash ^= hash >>> 16;
+		return hash & mask;
+	}
+}
@@ -0,0 +1,544 @@
+package tijos.framework.sensor.dlt645;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * In-process simulated DLT645 bus with any number of meters, used to test and
+ * load the library off-device. Meters answer read data (0x11), read address
+ * (0x13) and write data (0x14) requests. Reply latency, baud rate pacing and
+ * error injection are configurable. Meter addresses support the 0xAA wildcard
+ * byte, every matching meter answers and overlapping replies are garbled as on
+ * a real RS-485 bus.
+ *
+ * @author TiJOS
+ */
+public class DLT645Simulator implements IDLT645Transport {
+
+	private static final int ADDRESS_LEN = 6;
+
+	/**
+	 * Simulated meter
+	 */
+	static class Meter {
+		final byte[] address = new byte[ADDRESS_LEN];
+		final HashMap<Integer, byte[]> values = new HashMap<Integer, byte[]>();
+
+		// current and max baud rate, 0 if the meter follows any rate
+		int baudRate;
+		int maxBaudRate;
+	}
+
+	/**
+	 * Reply frame on the wire
+	 */
+	static class Reply {
+		byte[] data;
+		long start; // time in ns the first byte is on the wire
+		int pos; // bytes already read
+	}
+
+	private final HashMap<Long, Meter> meters = new HashMap<Long, Meter>();
+
+	// decoder for the requests written by the master
+	private final DLT645Decoder decoder = new DLT645Decoder();
+
+	private final ArrayList<Reply> replies = new ArrayList<Reply>();
+
+	private final Random random = new Random(1);
+
+	private int latency = 0;
+	private int baudRate = 0;
+	private double corruptRate = 0;
+	private double dropRate = 0;
+
+	// half of the frames are lost above the rate, 0 for no limit
+	private int reliableBaudRate = 0;
+
+	// max data area of a reply frame, longer values are sent in follow-up frames
+	private int maxDataLen = 200;
+
+	// time in ns the bus is free again
+	private long busFree = 0;
+
+	private boolean wakeup = false;
+
+	/***** statistics *******/
+	private int requestCount = 0;
+	private int replyCount = 0;
+
+	/**
+	 * Add a meter to the bus
+	 *
+	 * @param address 6 bytes meter address
+	 */
+	public synchronized void addMeter(byte[] address) {
+		addMeter(address, 0, 0);
+	}
+
+	/**
+	 * Add a meter listening at the baud rate, it could be switched up to the max
+	 * baud rate by the change comm speed request
+	 *
+	 * @param address     6 bytes meter address
+	 * @param baudRate    current baud rate
+	 * @param maxBaudRate max baud rate supported
+	 */
+	public synchronized void addMeter(byte[] address, int baudRate, int maxBaudRate) {
+		Meter meter = new Meter();
+		System.arraycopy(address, 0, meter.address, 0, ADDRESS_LEN);
+		meter.baudRate = baudRate;
+		meter.maxBaudRate = maxBaudRate;
+		meters.put(Long.valueOf(DLT645Frame.addressKey(address)), meter);
+	}
+
+	/**
+	 * Current baud rate of the meter
+	 *
+	 * @param address 6 bytes meter address
+	 * @return baud rate, 0 if the meter follows any rate or is not found
+	 */
+	public synchronized int getMeterBaudRate(byte[] address) {
+		Meter meter = meters.get(Long.valueOf(DLT645Frame.addressKey(address)));
+		return meter == null ? 0 : meter.baudRate;
+	}
+
+	/**
+	 * Line quality limit, half of the requests are lost above the baud rate
+	 *
+	 * @param reliableBaudRate baud rate, 0 for no limit
+	 */
+	public synchronized void setReliableBaudRate(int reliableBaudRate) {
+		this.reliableBaudRate = reliableBaudRate;
+	}
+
+	/**
+	 * Set the value the meter returns for the data tag
+	 *
+	 * @param address 6 bytes meter address
+	 * @param dataTag data tag
+	 * @param value   raw value bytes, little endian BCD
+	 * @throws IOException if the meter is not found
+	 */
+	public synchronized void setValue(byte[] address, int dataTag, byte[] value) throws IOException {
+		Meter meter = meters.get(Long.valueOf(DLT645Frame.addressKey(address)));
+		if (meter == null)
+			throw new IOException("meter not found");
+
+		meter.values.put(Integer.valueOf(dataTag), value);
+	}
+
+	/**
+	 * Reply latency after the request is received
+	 *
+	 * @param latency latency in ms
+	 */
+	public synchronized void setLatency(int latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * Pace the wire at the baud rate with 11 bits per byte (8E1), 0 means no
+	 * pacing. Meters at another rate do not hear the requests.
+	 *
+	 * @param baudRate
+	 */
+	@Override
+	public synchronized void setBaudRate(int baudRate) {
+		this.baudRate = baudRate;
+	}
+
+	/**
+	 * Max data area of a reply frame, longer values are split into follow-up
+	 * frames
+	 *
+	 * @param maxDataLen data length including the data tag
+	 */
+	public synchronized void setMaxDataLength(int maxDataLen) {
+		this.maxDataLen = maxDataLen;
+	}
+
+	/**
+	 * Error injection
+	 *
+	 * @param corruptRate ratio of replies with one corrupted byte
+	 * @param dropRate    ratio of requests without reply
+	 */
+	public synchronized void setErrorRate(double corruptRate, double dropRate) {
+		this.corruptRate = corruptRate;
+		this.dropRate = dropRate;
+	}
+
+	/**
+	 * Number of requests received
+	 *
+	 * @return
+	 */
+	public synchronized int getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * Number of replies sent
+	 *
+	 * @return
+	 */
+	public synchronized int getReplyCount() {
+		return replyCount;
+	}
+
+	@Override
+	public synchronized int available() throws IOException {
+		long now = System.nanoTime();
+		int count = 0;
+
+		for (int i = 0; i < replies.size(); i++) {
+			Reply reply = replies.get(i);
+			int ready = onWire(reply, now);
+			count += ready - reply.pos;
+			if (ready < reply.data.length)
+				break;
+		}
+		return count;
+	}
+
+	@Override
+	public synchronized int available(int timeOut) throws IOException {
+		long deadline = System.currentTimeMillis() + timeOut;
+
+		while (true) {
+			int avail = available();
+			if (avail > 0 || wakeup) {
+				wakeup = false;
+				return avail;
+			}
+
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0)
+				return 0;
+
+			try {
+				// replies are paced on the wire, check again for the next byte
+				wait(replies.isEmpty() ? left : Math.min(left, 1));
+			} catch (InterruptedException e) {
+				throw new IOException("simulator wait interrupted");
+			}
+		}
+	}
+
+	@Override
+	public synchronized void wakeup() {
+		wakeup = true;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized int read(byte[] buffer, int off, int len) throws IOException {
+		long now = System.nanoTime();
+		int count = 0;
+
+		while (count < len && !replies.isEmpty()) {
+			Reply reply = replies.get(0);
+			int ready = onWire(reply, now);
+			int n = Math.min(len - count, ready - reply.pos);
+			System.arraycopy(reply.data, reply.pos, buffer, off + count, n);
+			reply.pos += n;
+			count += n;
+
+			if (reply.pos < reply.data.length)
+				break;
+
+			replies.remove(0);
+		}
+		return count;
+	}
+
+	@Override
+	public synchronized void write(byte[] buffer, int off, int len) throws IOException {
+		long now = System.nanoTime();
+		long start = Math.max(now, busFree);
+		busFree = start + len * byteTime();
+
+		int pos = 0;
+		while (pos < len) {
+			pos += decoder.update(buffer, off + pos, len - pos);
+			if (decoder.isFrameReady()) {
+				handleRequest();
+			}
+		}
+
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void clear() throws IOException {
+		replies.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+
+	/**
+	 * Answer the request held by the decoder
+	 */
+	private void handleRequest() {
+		DLT645Frame frame = decoder.getFrame();
+		int control = frame.controlCode();
+
+		// replies from other meters are not requests
+		if ((control & 0x80) != 0)
+			return;
+
+		requestCount++;
+
+		if (random.nextDouble() < dropRate)
+			return;
+
+		if (reliableBaudRate > 0 && baudRate > reliableBaudRate && random.nextBoolean())
+			return;
+
+		byte[] wire = null;
+		for (Meter meter : meters.values()) {
+			if (!matches(decoder.getBuffer(), meter.address))
+				continue;
+
+			if (meter.baudRate != 0 && baudRate != 0 && meter.baudRate != baudRate)
+				continue;
+
+			byte[] reply = answer(meter, control, frame);
+			if (reply == null)
+				continue;
+
+			if (wire == null) {
+				wire = reply;
+			} else {
+				// overlapping replies from several meters
+				byte[] merged = new byte[Math.max(wire.length, reply.length)];
+				for (int i = 0; i < merged.length; i++) {
+					int b1 = i < wire.length ? wire[i] : 0;
+					int b2 = i < reply.length ? reply[i] : 0;
+					merged[i] = (byte) (b1 | b2);
+				}
+				wire = merged;
+			}
+		}
+
+		if (wire == null)
+			return;
+
+		if (random.nextDouble() < corruptRate) {
+			wire[random.nextInt(wire.length)] ^= (byte) (1 << random.nextInt(8));
+		}
+
+		Reply reply = new Reply();
+		reply.data = wire;
+		reply.start = busFree + latency * 1000000L;
+		busFree = reply.start + wire.length * byteTime();
+		replies.add(reply);
+		replyCount++;
+	}
+
+	/**
+	 * Build the reply of the meter
+	 *
+	 * @param meter
+	 * @param control request control code
+	 * @param frame   request frame
+	 * @return reply frame or null for no reply
+	 */
+	private byte[] answer(Meter meter, int control, DLT645Frame frame) {
+		int funCode = control & 0x1F;
+		int dataLen = frame.dataLength();
+
+		switch (funCode) {
+		case 0x11: // read data
+			if (dataLen < 4)
+				return null;
+
+			int dataTag = frame.dataTag();
+			byte[] value = meter.values.get(Integer.valueOf(dataTag));
+			if (value == null) {
+				value = blockValue(meter, dataTag);
+			}
+
+			if (value == null) {
+				// error reply, no requested data
+				return encodeFrame(meter.address, 0xC0 | funCode, new byte[] { 0x02 }, 1);
+			}
+
+			int len = Math.min(value.length, maxDataLen - 4);
+			int more = len < value.length ? 0x20 : 0;
+
+			byte[] payload = new byte[4 + len];
+			frame.copyData(0, payload, 0, 4);
+			System.arraycopy(value, 0, payload, 4, len);
+			return encodeFrame(meter.address, 0x80 | more | funCode, payload, payload.length);
+
+		case 0x12: // read follow-up frame, tag + seq, alarm ack without seq
+			if (dataLen < 5)
+				return null;
+
+			int seq = frame.dataByte(4);
+			byte[] stream = meter.values.get(Integer.valueOf(frame.dataTag()));
+			if (stream == null) {
+				stream = blockValue(meter, frame.dataTag());
+			}
+
+			int pos = (maxDataLen - 4) + (seq - 1) * (maxDataLen - 5);
+			if (stream == null || seq == 0 || pos >= stream.length) {
+				return encodeFrame(meter.address, 0xC0 | funCode, new byte[] { 0x02 }, 1);
+			}
+
+			int chunk = Math.min(stream.length - pos, maxDataLen - 5);
+			int follow = pos + chunk < stream.length ? 0x20 : 0;
+
+			byte[] part = new byte[4 + chunk + 1];
+			frame.copyData(0, part, 0, 4);
+			System.arraycopy(stream, pos, part, 4, chunk);
+			part[4 + chunk] = (byte) seq;
+			return encodeFrame(meter.address, 0x80 | follow | funCode, part, part.length);
+
+		case 0x17: // change comm speed, one bit per rate from 600 << 1
+			if (dataLen < 1 || meter.maxBaudRate == 0)
+				return null;
+
+			int code = frame.dataByte(0);
+			int rate = 0;
+			for (int i = 1; i <= 6; i++) {
+				if (code == (1 << i)) {
+					rate = 300 << i;
+				}
+			}
+
+			if (rate == 0 || rate > meter.maxBaudRate) {
+				return encodeFrame(meter.address, 0xC0 | funCode, new byte[] { 0x01 }, 1);
+			}
+
+			// the reply goes out at the old rate
+			meter.baudRate = rate;
+			return encodeFrame(meter.address, 0x80 | funCode, new byte[] { (byte) code }, 1);
+
+		case 0x13: // read address
+			return encodeFrame(meter.address, 0x80 | funCode, meter.address, ADDRESS_LEN);
+
+		case 0x14: // write data, tag + password + operator + data
+			if (dataLen < 12)
+				return null;
+
+			byte[] written = new byte[dataLen - 12];
+			frame.copyData(12, written, 0, written.length);
+			meter.values.put(Integer.valueOf(decoder.getDataTag()), written);
+			return encodeFrame(meter.address, 0x80 | funCode, null, 0);
+
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Concatenate the values of the block members in the order of the wildcard
+	 * index, 0xFF in DI0, DI1 or DI2
+	 *
+	 * @param meter
+	 * @param dataTag block data tag
+	 * @return block value or null if not a block or no member is set
+	 */
+	private static byte[] blockValue(Meter meter, int dataTag) {
+		int shift = -1;
+		for (int s = 0; s <= 16; s += 8) {
+			if (((dataTag >>> s) & 0xFF) == 0xFF) {
+				shift = s;
+				break;
+			}
+		}
+
+		if (shift < 0)
+			return null;
+
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		int base = dataTag & ~(0xFF << shift);
+		for (int i = 0; i < 0xFF; i++) {
+			byte[] value = meter.values.get(Integer.valueOf(base | (i << shift)));
+			if (value != null) {
+				block.write(value, 0, value.length);
+			}
+		}
+
+		return block.size() > 0 ? block.toByteArray() : null;
+	}
+
+	/**
+	 * Encode a frame, 0x33 is added to the data area
+	 *
+	 * @param address meter address
+	 * @param control control code
+	 * @param data    data area
+	 * @param dataLen data length
+	 * @return
+	 */
+	static byte[] encodeFrame(byte[] address, int control, byte[] data, int dataLen) {
+		byte[] frame = new byte[12 + dataLen];
+		frame[0] = 0x68;
+		System.arraycopy(address, 0, frame, 1, ADDRESS_LEN);
+		frame[7] = 0x68;
+		frame[8] = (byte) control;
+		frame[9] = (byte) dataLen;
+
+		for (int i = 0; i < dataLen; i++) {
+			frame[10 + i] = (byte) (data[i] + 0x33);
+		}
+
+		int cs = 0;
+		for (int i = 0; i < 10 + dataLen; i++) {
+			cs += frame[i];
+		}
+		frame[10 + dataLen] = (byte) cs;
+		frame[11 + dataLen] = 0x16;
+
+		return frame;
+	}
+
+	/**
+	 * Check the request address against the meter address, 0xA is the wildcard
+	 * nibble
+	 */
+	private static boolean matches(byte[] frame, byte[] address) {
+		for (int i = 0; i < ADDRESS_LEN; i++) {
+			int b = frame[DLT645Decoder.OFFSET_ADDRESS + i];
+			if ((b & 0xF0) != 0xA0 && (b & 0xF0) != (address[i] & 0xF0))
+				return false;
+			if ((b & 0x0F) != 0x0A && (b & 0x0F) != (address[i] & 0x0F))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Number of reply bytes on the wire at the time
+	 */
+	private int onWire(Reply reply, long now) {
+		if (now < reply.start)
+			return reply.pos;
+
+		long byteTime = byteTime();
+		if (byteTime == 0)
+			return reply.data.length;
+
+		long count = (now - reply.start) / byteTime + 1;
+		return (int) Math.min(reply.data.length, count);
+	}
+
+	/**
+	 * Time of one byte on the wire in ns
+	 */
+	private long byteTime() {
+		if (baudRate <= 0)
+			return 0;
+
+		return 11L * 1000000000L / baudRate;
+	}
+}
@@ -0,0 +1,367 @@
+package tijos.framework.sensor.dlt645;
+
+/**
+ * Registry of data tag formats: field length, decimal places, sign and unit.
+ * The standard DLT645-2007 tags defined in TiDLT645 are pre-registered, other
+ * tags could be registered by the application.
+ *
+ * Lookup is an open addressing hash table on the primitive tag, no boxing is
+ * involved. Register the tags before sharing the registry among threads.
+ *
+ * @author TiJOS
+ */
+public class DLT645TagRegistry {
+
+	private static final DLT645TagRegistry defaultRegistry = new DLT645TagRegistry(32);
+
+	static {
+		DLT645TagRegistry r = defaultRegistry;
+
+		// energy XXXXXX.XX kWh
+		r.register(TiDLT645.DLT645_TAG_FORWARD_ACTIVE_POWER, 4, 2, false, "kWh");
+		r.register(TiDLT645.DLT645_TAG_FORWARD_ACTIVE_POWER_1, 4, 2, false, "kWh");
+		r.register(TiDLT645.DLT645_TAG_FORWARD_ACTIVE_POWER_2, 4, 2, false, "kWh");
+		r.register(TiDLT645.DLT645_TAG_FORWARD_ACTIVE_POWER_3, 4, 2, false, "kWh");
+		r.register(TiDLT645.DLT645_TAG_FORWARD_ACTIVE_POWER_4, 4, 2, false, "kWh");
+		r.register(TiDLT645.DLT645_TAG_BACKWARD_ACTIVE_POWER, 4, 2, false, "kWh");
+		r.register(TiDLT645.DLT645_TAG_BACKWARD_ACTIVE_POWER_1, 4, 2, false, "kWh");
+		r.register(TiDLT645.DLT645_TAG_BACKWARD_ACTIVE_POWER_2, 4, 2, false, "kWh");
+		r.register(TiDLT645.DLT645_TAG_BACKWARD_ACTIVE_POWER_3, 4, 2, false, "kWh");
+		r.register(TiDLT645.DLT645_TAG_BACKWARD_ACTIVE_POWER_4, 4, 2, false, "kWh");
+
+		// voltage XXX.X V
+		r.register(TiDLT645.DLT645_TAG_GRID_PHASE_VOLTAGE_A, 2, 1, false, "V");
+		r.register(TiDLT645.DLT645_TAG_GRID_PHASE_VOLTAGE_B, 2, 1, false, "V");
+		r.register(TiDLT645.DLT645_TAG_GRID_PHASE_VOLTAGE_C, 2, 1, false, "V");
+
+		// current XXX.XXX A, sign in the highest bit
+		r.register(TiDLT645.DLT645_TAG_GRID_PHASE_CURRENT_A, 3, 3, true, "A");
+		r.register(TiDLT645.DLT645_TAG_GRID_PHASE_CURRENT_B, 3, 3, true, "A");
+		r.register(TiDLT645.DLT645_TAG_GRID_PHASE_CURRENT_C, 3, 3, true, "A");
+
+		// active power XX.XXXX kW, sign in the highest bit
+		r.register(TiDLT645.DLT645_TAG_INSTANT_ACTIVE_POWER, 3, 4, true, "kW");
+		r.register(TiDLT645.DLT645_TAG_GRID_PHASE_POWER_A, 3, 4, true, "kW");
+		r.register(TiDLT645.DLT645_TAG_GRID_PHASE_POWER_B, 3, 4, true, "kW");
+		r.register(TiDLT645.DLT645_TAG_GRID_PHASE_POWER_C, 3, 4, true, "kW");
+	}
+
+	// hash slots, entry index + 1, 0 for empty
+	private int[] slots;
+	private int mask;
+
+	// entries
+	private int[] tags;
+	private byte[] lengths;
+	private byte[] decimals;
+	private boolean[] signed;
+	private String[] units;
+	private int count = 0;
+
+	/**
+	 * Registry with the standard tags, shared by all the meters
+	 *
+	 * @return
+	 */
+	public static DLT645TagRegistry getDefault() {
+		return defaultRegistry;
+	}
+
+	/**
+	 * Initialize an empty registry
+	 *
+	 * @param capacity expected number of tags
+	 */
+	public DLT645TagRegistry(int capacity) {
+		capacity = Math.max(capacity, 4);
+
+		int size = 4;
+		while (size < capacity * 2) {
+			size <<= 1;
+		}
+
+		slots = new int[size];
+		mask = size - 1;
+
+		tags = new int[capacity];
+		lengths = new byte[capacity];
+		decimals = new byte[capacity];
+		signed = new boolean[capacity];
+		units = new String[capacity];
+	}
+
+	/**
+	 * Register the format of the tag, replace it if already registered
+	 *
+	 * @param dataTag  data tag
+	 * @param length   field length in bytes
+	 * @param decimals decimal places
+	 * @param signed   highest bit of the field is the sign
+	 * @param unit     unit of the value
+	 */
+	public synchronized void register(int dataTag, int length, int decimals, boolean signed, String unit) {
+		if (length <= 0 || length > 9 || decimals < 0 || decimals > 18)
+			throw new IllegalArgumentException("DLT645 Invalid tag format");
+
+		int index = indexOf(dataTag);
+		if (index < 0) {
+			if (count == tags.length) {
+				grow();
+			}
+
+			index = count++;
+			tags[index] = dataTag;
+			insert(dataTag, index);
+		}
+
+		this.lengths[index] = (byte) length;
+		this.decimals[index] = (byte) decimals;
+		this.signed[index] = signed;
+		this.units[index] = unit;
+	}
+
+	/**
+	 * Whether the tag is registered
+	 *
+	 * @param dataTag
+	 * @return
+	 */
+	public boolean contains(int dataTag) {
+		return indexOf(dataTag) >= 0;
+	}
+
+	/**
+	 * Field length of the tag
+	 *
+	 * @param dataTag
+	 * @return length in bytes or -1 if not registered
+	 */
+	public int getLength(int dataTag) {
+		int index = indexOf(dataTag);
+		return index < 0 ? -1 : lengths[index];
+	}
+
+	/**
+	 * Decimal places of the tag
+	 *
+	 * @param dataTag
+	 * @return decimal places or -1 if not registered
+	 */
+	public int getDecimals(int dataTag) {
+		int index = indexOf(dataTag);
+		return index < 0 ? -1 : decimals[index];
+	}
+
+	/**
+	 * Whether the value of the tag is signed
+	 *
+	 * @param dataTag
+	 * @return
+	 */
+	public boolean isSigned(int dataTag) {
+		int index = indexOf(dataTag);
+		return index >= 0 && signed[index];
+	}
+
+	/**
+	 * Unit of the tag
+	 *
+	 * @param dataTag
+	 * @return unit or null if not registered
+	 */
+	public String getUnit(int dataTag) {
+		int index = indexOf(dataTag);
+		return index < 0 ? null : units[index];
+	}
+
+	/**
+	 * Decode the value of the tag as scaled long, divide it by 10^decimals for
+	 * the reading
+	 *
+	 * @param dataTag data tag
+	 * @param data    reply data without data tag
+	 * @param start   start position
+	 * @return scaled value or DLT645BCD.INVALID if not registered or invalid
+	 */
+	public long decode(int dataTag, byte[] data, int start) {
+		int index = indexOf(dataTag);
+		if (index < 0)
+			return DLT645BCD.INVALID;
+
+		if (signed[index])
+			return DLT645BCD.decodeSigned(data, start, lengths[index]);
+
+		return DLT645BCD.decode(data, start, lengths[index]);
+	}
+
+	/**
+	 * Decode the value of the tag
+	 *
+	 * @param dataTag data tag
+	 * @param data    reply data without data tag
+	 * @return reading or NaN if not registered or invalid
+	 */
+	public double decodeDouble(int dataTag, byte[] data) {
+		int index = indexOf(dataTag);
+		if (index < 0)
+			return Double.NaN;
+
+		return DLT645BCD.toDouble(decode(dataTag, data, 0), decimals[index]);
+	}
+
+	/**
+	 * Decode the value of the frame by its data tag
+	 *
+	 * @param frame reply frame
+	 * @return reading or NaN if not registered or invalid
+	 */
+	public double decodeDouble(DLT645Frame frame) {
+		int index = indexOf(frame.dataTag());
+		if (index < 0)
+			return Double.NaN;
+
+		long value = signed[index] ? frame.bcdSignedValue(0, lengths[index]) : frame.bcdValue(0, lengths[index]);
+		return DLT645BCD.toDouble(value, decimals[index]);
+	}
+
+	/**
+	 * Whether the tag is a data block, with 0xFF in one of DI0, DI1 or DI2
+	 *
+	 * @param dataTag
+	 * @return
+	 */
+	public boolean isBlock(int dataTag) {
+		return wildcardShift(dataTag) >= 0;
+	}
+
+	/**
+	 * Split the data block into the values of its members. Members are laid out
+	 * by the wildcard index, the ones not registered are skipped until the first
+	 * registered member, then take the format of the previous member, such as
+	 * tariffs beyond the registered ones.
+	 *
+	 * @param blockTag block data tag
+	 * @param data     reply data without data tag
+	 * @param tags     data tag of each member
+	 * @param values   reading of each member, NaN if not valid BCD
+	 * @return number of members decoded
+	 */
+	public int decodeBlock(int blockTag, byte[] data, int[] tags, double[] values) {
+		int shift = wildcardShift(blockTag);
+		if (shift < 0)
+			return 0;
+
+		int base = blockTag & ~(0xFF << shift);
+		int format = -1;
+		int pos = 0;
+		int count = 0;
+
+		for (int i = 0; i < 0xFF && pos < data.length && count < tags.length; i++) {
+			int tag = base | (i << shift);
+			int index = indexOf(tag);
+			if (index >= 0) {
+				format = index;
+			} else if (format < 0) {
+				continue;
+			}
+
+			int len = lengths[format];
+			if (pos + len > data.length)
+				break;
+
+			long value = signed[format] ? DLT645BCD.decodeSigned(data, pos, len) : DLT645BCD.decode(data, pos, len);
+			tags[count] = tag;
+			values[count] = DLT645BCD.toDouble(value, decimals[format]);
+
+			pos += len;
+			count++;
+		}
+
+		return count;
+	}
+
+	private static int wildcardShift(int dataTag) {
+		int shift = -1;
+		for (int s = 0; s <= 16; s += 8) {
+			if (((dataTag >>> s) & 0xFF) != 0xFF)
+				continue;
+
+			// nested blocks are not supported
+			if (shift >= 0)
+				return -1;
+
+			shift = s;
+		}
+		return shift;
+	}
+
+	private int indexOf(int dataTag) {
+		int[] s = slots;
+		int m = mask;
+		int slot = hash(dataTag) & m;
+		while (true) {
+			int entry = s[slot];
+			if (entry == 0)
+				return -1;
+
+			if (tags[entry - 1] == dataTag)
+				return entry - 1;
+
+			slot = (slot + 1) & m;
+		}
+	}
+
+	private void insert(int dataTag, int index) {
+		if (count * 2 > slots.length) {
+			rehash(slots.length * 2);
+		}
+
+		int slot = hash(dataTag) & mask;
+		while (slots[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = index + 1;
+	}
+
+	private void rehash(int size) {
+		int[] s = new int[size];
+		int m = size - 1;
+
+		// the new entry is inserted by the caller
+		for (int i = 0; i < count - 1; i++) {
+			int slot = hash(tags[i]) & m;
+			while (s[slot] != 0) {
+				slot = (slot + 1) & m;
+			}
+			s[slot] = i + 1;
+		}
+		slots = s;
+		mask = m;
+	}
+
+	private void grow() {
+		int size = tags.length * 2;
+
+		int[] t = new int[size];
+		System.arraycopy(tags, 0, t, 0, count);
+		byte[] l = new byte[size];
+		System.arraycopy(lengths, 0, l, 0, count);
+		byte[] d = new byte[size];
+		System.arraycopy(decimals, 0, d, 0, count);
+		boolean[] g = new boolean[size];
+		System.arraycopy(signed, 0, g, 0, count);
+		String[] u = new String[size];
+		System.arraycopy(units, 0, u, 0, count);
+
+		tags = t;
+		lengths = l;
+		decimals = d;
+		signed = g;
+		units = u;
+	}
+
+	private static int hash(int dataTag) {
+		int h = dataTag * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,17 @@
+package tijos.framework.sensor.dlt645;
+
+import java.io.IOException;
+
+/**
+ * The meter did not reply before the timeout
+ *
+ * @author TiJOS
+ */
+public class DLT645TimeoutException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public DLT645TimeoutException(String message) {
+		super(message);
+	}
+}
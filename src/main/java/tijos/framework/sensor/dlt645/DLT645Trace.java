@@ -0,0 +1,199 @@
+package tijos.framework.sensor.dlt645;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Leveled trace facility. Messages and hex dumps are only built when the level
+ * is enabled, the default level only lets errors through.
+ *
+ * Raw frames could also be captured in binary with timestamps into a ring
+ * buffer and dumped on demand, record format: 8 bytes time in ms big endian, 1
+ * byte direction, 2 bytes length big endian, frame bytes.
+ *
+ * @author TiJOS
+ */
+public class DLT645Trace {
+
+	/***** trace levels *******/
+	public static final int NONE = 0;
+	public static final int ERROR = 1;
+	public static final int INFO = 2;
+	public static final int DEBUG = 3;
+
+	/***** frame direction *******/
+	public static final int RX = 0;
+	public static final int TX = 1;
+
+	private static final int RECORD_HEAD_LEN = 11;
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private static volatile int level = ERROR;
+
+	private static ITraceSink sink = new ITraceSink() {
+		public void trace(int level, String message) {
+			System.out.println(message);
+		}
+	};
+
+	// capture ring buffer
+	private static byte[] ring = null;
+	private static int head = 0; // oldest record
+	private static int used = 0;
+
+	/**
+	 * Set trace level
+	 *
+	 * @param level NONE, ERROR, INFO or DEBUG
+	 */
+	public static void setLevel(int level) {
+		DLT645Trace.level = level;
+	}
+
+	/**
+	 * Set trace sink
+	 *
+	 * @param sink
+	 */
+	public static synchronized void setSink(ITraceSink sink) {
+		DLT645Trace.sink = sink;
+	}
+
+	/**
+	 * Whether the level is enabled, check it before building expensive messages
+	 *
+	 * @param level
+	 * @return
+	 */
+	public static boolean isEnabled(int level) {
+		return level <= DLT645Trace.level;
+	}
+
+	/**
+	 * Trace message at the level
+	 *
+	 * @param level
+	 * @param message
+	 */
+	public static void trace(int level, String message) {
+		if (!isEnabled(level))
+			return;
+
+		ITraceSink s;
+		synchronized (DLT645Trace.class) {
+			s = sink;
+		}
+
+		if (s != null) {
+			s.trace(level, message);
+		}
+	}
+
+	/**
+	 * Trace error with exception
+	 *
+	 * @param message
+	 * @param e
+	 */
+	public static void error(String message, Exception e) {
+		if (isEnabled(ERROR)) {
+			trace(ERROR, message + ": " + e);
+		}
+	}
+
+	/**
+	 * Trace frame, the hex text is built only at DEBUG level, the raw bytes are
+	 * captured if capture is enabled
+	 *
+	 * @param direction RX or TX
+	 * @param buffer
+	 * @param off
+	 * @param len
+	 */
+	public static void frame(int direction, byte[] buffer, int off, int len) {
+		if (ring != null) {
+			capture(direction, buffer, off, len);
+		}
+
+		if (!isEnabled(DEBUG))
+			return;
+
+		StringBuilder sb = new StringBuilder(len * 2 + 5);
+		sb.append(direction == TX ? "send " : "recv ");
+		for (int i = off; i < off + len; i++) {
+			sb.append(HEX[(buffer[i] >> 4) & 0x0F]).append(HEX[buffer[i] & 0x0F]);
+		}
+		trace(DEBUG, sb.toString());
+	}
+
+	/**
+	 * Enable binary frame capture into a ring buffer, the oldest records are
+	 * dropped when it is full
+	 *
+	 * @param capacity ring buffer size in bytes, 0 to disable
+	 */
+	public static synchronized void setCapture(int capacity) {
+		ring = capacity > 0 ? new byte[capacity] : null;
+		head = 0;
+		used = 0;
+	}
+
+	/**
+	 * Dump the captured records from the oldest one and clear the ring buffer
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public static synchronized void dumpCapture(OutputStream out) throws IOException {
+		if (ring == null)
+			return;
+
+		int first = Math.min(used, ring.length - head);
+		out.write(ring, head, first);
+		out.write(ring, 0, used - first);
+		out.flush();
+
+		head = 0;
+		used = 0;
+	}
+
+	private static synchronized void capture(int direction, byte[] buffer, int off, int len) {
+		if (ring == null)
+			return;
+
+		int size = RECORD_HEAD_LEN + len;
+		if (size > ring.length)
+			return;
+
+		// drop the oldest records to make room
+		while (ring.length - used < size) {
+			int recLen = ((ringAt(9) & 0xFF) << 8) | (ringAt(10) & 0xFF);
+			int recSize = RECORD_HEAD_LEN + recLen;
+			head = (head + recSize) % ring.length;
+			used -= recSize;
+		}
+
+		long now = System.currentTimeMillis();
+		int pos = (head + used) % ring.length;
+		for (int i = 7; i >= 0; i--) {
+			pos = put(pos, (byte) (now >>> (i * 8)));
+		}
+		pos = put(pos, (byte) direction);
+		pos = put(pos, (byte) (len >> 8));
+		pos = put(pos, (byte) len);
+		for (int i = 0; i < len; i++) {
+			pos = put(pos, buffer[off + i]);
+		}
+		used += size;
+	}
+
+	private static byte ringAt(int index) {
+		return ring[(head + index) % ring.length];
+	}
+
+	private static int put(int pos, byte b) {
+		ring[pos] = b;
+		return (pos + 1) % ring.length;
+	}
+}
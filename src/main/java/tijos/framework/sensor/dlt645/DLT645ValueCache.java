@@ -0,0 +1,286 @@
+package tijos.framework.sensor.dlt645;
+
+import java.io.IOException;
+
+/**
+ * Latest meter data keyed by meter address and data tag with the time it was
+ * received. A read within the time to live of the tag is served from the cache,
+ * a miss reads the meter once while the other callers asking for the same
+ * value wait for that read. Every read data reply decoded by TiDLT645 refreshes
+ * the cache, so the poller keeps it warm.
+ *
+ * The cache is direct mapped, a new value replaces the one in its slot. Callers
+ * get a copy of the cached value.
+ *
+ * @author TiJOS
+ */
+public class DLT645ValueCache {
+
+	/**
+	 * Cached value
+	 */
+	static class Entry {
+		long address;
+		int dataTag;
+
+		byte[] value;
+		long time;
+
+		// a caller is reading the meter
+		boolean loading;
+		IOException error;
+	}
+
+	private final TiDLT645 dlt645;
+
+	private final Entry[] entries;
+	private final int mask;
+
+	private int defaultTtl = 1000;
+
+	// tags with their own time to live
+	private int[] ttlTags = new int[4];
+	private int[] ttls = new int[4];
+	private int ttlCount = 0;
+
+	/***** statistics *******/
+	private int hitCount = 0;
+	private int missCount = 0;
+
+	/**
+	 * Initialize with the meter bus and capacity
+	 *
+	 * @param dlt645
+	 * @param capacity number of values, rounded up to power of 2
+	 */
+	public DLT645ValueCache(TiDLT645 dlt645, int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+
+		this.dlt645 = dlt645;
+		this.entries = new Entry[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Time to live of the tags without their own
+	 *
+	 * @param ttl time in ms
+	 */
+	public synchronized void setDefaultTtl(int ttl) {
+		this.defaultTtl = ttl;
+	}
+
+	/**
+	 * Time to live of the tag
+	 *
+	 * @param dataTag data tag
+	 * @param ttl     time in ms, 0 to always read the meter
+	 */
+	public synchronized void setTtl(int dataTag, int ttl) {
+		for (int i = 0; i < ttlCount; i++) {
+			if (ttlTags[i] == dataTag) {
+				ttls[i] = ttl;
+				return;
+			}
+		}
+
+		if (ttlCount == ttlTags.length) {
+			int[] tags = new int[ttlCount * 2];
+			System.arraycopy(ttlTags, 0, tags, 0, ttlCount);
+			ttlTags = tags;
+
+			int[] values = new int[ttlCount * 2];
+			System.arraycopy(ttls, 0, values, 0, ttlCount);
+			ttls = values;
+		}
+
+		ttlTags[ttlCount] = dataTag;
+		ttls[ttlCount] = ttl;
+		ttlCount++;
+	}
+
+	/**
+	 * Get the meter data, the meter is read if the cached value is older than
+	 * the time to live of the tag
+	 *
+	 * @param address 6 bytes meter address
+	 * @param dataTag data tag
+	 * @return copy of the meter data
+	 * @throws IOException if the meter read failed
+	 */
+	public byte[] get(byte[] address, int dataTag) throws IOException {
+		long key = DLT645Frame.addressKey(address);
+		Entry entry;
+
+		synchronized (this) {
+			int slot = slot(key, dataTag);
+			entry = entries[slot];
+
+			if (entry == null || entry.address != key || entry.dataTag != dataTag) {
+				entry = new Entry();
+				entry.address = key;
+				entry.dataTag = dataTag;
+				entries[slot] = entry;
+			} else if (entry.value != null && System.currentTimeMillis() - entry.time < ttl(dataTag)) {
+				hitCount++;
+				return copy(entry.value);
+			}
+
+			missCount++;
+
+			if (entry.loading) {
+				// single flight, wait for the caller reading the meter
+				while (entry.loading) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new IOException("DLT645 waiting for cached value interrupted");
+					}
+				}
+
+				if (entry.error != null)
+					throw entry.error;
+
+				return copy(entry.value);
+			}
+
+			entry.loading = true;
+			entry.error = null;
+		}
+
+		byte[] value = null;
+		IOException error = null;
+		try {
+			value = dlt645.readMeterData(address, dataTag);
+		} catch (IOException e) {
+			error = e;
+		}
+
+		synchronized (this) {
+			// the value is normally stored already by update() from the reply
+			if (entry.loading) {
+				if (error == null) {
+					entry.value = copy(value);
+					entry.time = System.currentTimeMillis();
+				}
+				entry.error = error;
+				entry.loading = false;
+				notifyAll();
+			}
+
+			if (error != null)
+				throw error;
+
+			return copy(entry.value);
+		}
+	}
+
+	/**
+	 * Store the meter data received
+	 *
+	 * @param address 6 bytes meter address
+	 * @param dataTag data tag
+	 * @param value   meter data, it is copied
+	 */
+	public synchronized void update(byte[] address, int dataTag, byte[] value) {
+		long key = DLT645Frame.addressKey(address);
+		int slot = slot(key, dataTag);
+
+		Entry entry = entries[slot];
+		if (entry == null || entry.address != key || entry.dataTag != dataTag) {
+			// keep the slot of a value being read
+			if (entry != null && entry.loading)
+				return;
+
+			entry = new Entry();
+			entry.address = key;
+			entry.dataTag = dataTag;
+			entries[slot] = entry;
+		}
+
+		entry.value = copy(value);
+		entry.time = System.currentTimeMillis();
+
+		if (entry.loading) {
+			entry.error = null;
+			entry.loading = false;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Drop the cached value, such as after it is written to the meter
+	 *
+	 * @param address 6 bytes meter address
+	 * @param dataTag data tag
+	 */
+	public synchronized void invalidate(byte[] address, int dataTag) {
+		long key = DLT645Frame.addressKey(address);
+		Entry entry = entries[slot(key, dataTag)];
+		if (entry != null && entry.address == key && entry.dataTag == dataTag) {
+			entry.value = null;
+		}
+	}
+
+	/**
+	 * Time the cached value was received
+	 *
+	 * @param address 6 bytes meter address
+	 * @param dataTag data tag
+	 * @return time in ms, 0 if not cached
+	 */
+	public synchronized long getTimestamp(byte[] address, int dataTag) {
+		long key = DLT645Frame.addressKey(address);
+		Entry entry = entries[slot(key, dataTag)];
+		if (entry == null || entry.address != key || entry.dataTag != dataTag || entry.value == null)
+			return 0;
+
+		return entry.time;
+	}
+
+	/**
+	 * Number of reads served from the cache
+	 *
+	 * @return
+	 */
+	public synchronized int getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Number of reads going to the meter or waiting for it
+	 *
+	 * @return
+	 */
+	public synchronized int getMissCount() {
+		return missCount;
+	}
+
+	private int ttl(int dataTag) {
+		for (int i = 0; i < ttlCount; i++) {
+			if (ttlTags[i] == dataTag)
+				return ttls[i];
+		}
+		return defaultTtl;
+	}
+
+	private int slot(long key, int dataTag) {
+		long h = key * 31 + dataTag;
+		int hash = (int) (h ^ (h >>> 32));
+		hash ^= hash >>> 16;
+		return hash & mask;
+	}
+
+	private static byte[] copy(byte[] value) {
+		// dropped by invalidate() meanwhile
+		if (value == null)
+			return null;
+
+		byte[] data = new byte[value.length];
+		System.arraycopy(value, 0, data, 0, value.length);
+		return data;
+	}
+}
@@ -0,0 +1,199 @@
+package tijos.framework.sensor.dlt645;
+
+import java.io.IOException;
+
+/**
+ * Outbound queue packing encoded frames that expect no reply, such as alarm
+ * acks, into one transport write. The queue is flushed when the pending bytes
+ * reach the size threshold, when the oldest frame waited longer than the flush
+ * delay, or on demand.
+ *
+ * A frame expecting a reply is written alone by send, after the pending
+ * frames. Meters asked in one write would answer on top of each other on the
+ * half-duplex bus.
+ *
+ * Packed frames are sent back to back, so the 0xFE leading bytes of the
+ * following frames could be dropped to share the preamble of the first one.
+ * This is off by default as some meters need the preamble to wake up.
+ *
+ * @author TiJOS
+ */
+public class DLT645WriteQueue {
+
+	private static final int LEADING_BYTE = 0xFE;
+
+	private final IDLT645Transport transport;
+
+	private final byte[] buffer;
+	private int count = 0;
+	private int frames = 0;
+
+	// time in ms the first pending frame was queued
+	private long firstQueued = 0;
+
+	private int flushSize;
+	private int flushDelay = 20;
+	private boolean sharedPreamble = false;
+
+	/***** statistics *******/
+	private long writeCount = 0;
+	private long frameCount = 0;
+
+	/**
+	 * Initialize with transport and write buffer size
+	 *
+	 * @param transport
+	 * @param capacity  write buffer size
+	 */
+	public DLT645WriteQueue(IDLT645Transport transport, int capacity) {
+		this.transport = transport;
+		this.buffer = new byte[capacity];
+		this.flushSize = capacity;
+	}
+
+	/**
+	 * Flush thresholds
+	 *
+	 * @param flushSize  pending bytes to flush at
+	 * @param flushDelay max time in ms a frame waits in the queue
+	 */
+	public synchronized void setFlushThreshold(int flushSize, int flushDelay) {
+		this.flushSize = Math.min(flushSize, buffer.length);
+		this.flushDelay = flushDelay;
+	}
+
+	/**
+	 * Drop the 0xFE leading bytes of frames following the first one in a write
+	 *
+	 * @param sharedPreamble
+	 */
+	public synchronized void setSharedPreamble(boolean sharedPreamble) {
+		this.sharedPreamble = sharedPreamble;
+	}
+
+	/**
+	 * Queue the frame
+	 *
+	 * @param frame encoded frame
+	 * @throws IOException
+	 */
+	public synchronized void add(byte[] frame) throws IOException {
+		int start = 0;
+		if (sharedPreamble && count > 0) {
+			while (start < frame.length && (frame[start] & 0xFF) == LEADING_BYTE) {
+				start++;
+			}
+		}
+
+		int len = frame.length - start;
+		if (count + len > buffer.length) {
+			flush();
+			start = 0;
+			len = frame.length;
+		}
+
+		if (len > buffer.length) {
+			// too large to pack
+			transport.write(frame, 0, frame.length);
+			writeCount++;
+			frameCount++;
+			return;
+		}
+
+		if (count == 0) {
+			firstQueued = System.currentTimeMillis();
+		}
+
+		System.arraycopy(frame, start, buffer, count, len);
+		count += len;
+		frames++;
+
+		if (count >= flushSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Write a frame expecting a reply alone, the pending frames are written
+	 * first
+	 *
+	 * @param frame encoded frame
+	 * @throws IOException
+	 */
+	public synchronized void send(byte[] frame) throws IOException {
+		flush();
+
+		transport.write(frame, 0, frame.length);
+		writeCount++;
+		frameCount++;
+	}
+
+	/**
+	 * Write all pending frames in one transport write
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		if (count == 0)
+			return;
+
+		try {
+			transport.write(buffer, 0, count);
+			writeCount++;
+			frameCount += frames;
+		} finally {
+			count = 0;
+			frames = 0;
+		}
+	}
+
+	/**
+	 * Flush if the oldest pending frame waited longer than the flush delay
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void flushIfDue() throws IOException {
+		if (count > 0 && System.currentTimeMillis() - firstQueued >= flushDelay) {
+			flush();
+		}
+	}
+
+	/**
+	 * Whether frames are waiting in the queue
+	 *
+	 * @return
+	 */
+	public synchronized boolean isPending() {
+		return count > 0;
+	}
+
+	/**
+	 * Number of transport writes
+	 *
+	 * @return
+	 */
+	public synchronized long getWriteCount() {
+		return writeCount;
+	}
+
+	/**
+	 * Number of frames written
+	 *
+	 * @return
+	 */
+	public synchronized long getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Average frames per transport write
+	 *
+	 * @return
+	 */
+	public synchronized double getFramesPerWrite() {
+		if (writeCount == 0)
+			return 0;
+
+		return (double) frameCount / writeCount;
+	}
+}
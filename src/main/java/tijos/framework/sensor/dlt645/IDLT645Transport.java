@@ -0,0 +1,79 @@
+package tijos.framework.sensor.dlt645;
+
+import java.io.IOException;
+
+/**
+ * Byte transport under the DLT645 protocol, such as UART, serial server
+ * connection or simulated meter
+ *
+ * @author TiJOS
+ */
+public interface IDLT645Transport {
+
+	/**
+	 * Number of bytes could be read without blocking
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	int available() throws IOException;
+
+	/**
+	 * Wait until bytes could be read, the timeout elapses or wakeup() is called.
+	 * The waiting thread is parked or polls the port, it never spins.
+	 *
+	 * @param timeOut max time to wait in ms
+	 * @return number of bytes could be read without blocking
+	 * @throws IOException
+	 */
+	int available(int timeOut) throws IOException;
+
+	/**
+	 * Wake up the thread waiting in available(timeOut), such as to send a new
+	 * request
+	 */
+	void wakeup();
+
+	/**
+	 * Read received bytes
+	 *
+	 * @param buffer target buffer
+	 * @param off    start position
+	 * @param len    max length
+	 * @return number of bytes read
+	 * @throws IOException
+	 */
+	int read(byte[] buffer, int off, int len) throws IOException;
+
+	/**
+	 * Write bytes to the bus
+	 *
+	 * @param buffer source buffer
+	 * @param off    start position
+	 * @param len    length
+	 * @throws IOException
+	 */
+	void write(byte[] buffer, int off, int len) throws IOException;
+
+	/**
+	 * Change the baud rate of the bus, 8 data bits, even parity and 1 stop bit
+	 *
+	 * @param baudRate
+	 * @throws IOException if the transport could not change the baud rate
+	 */
+	void setBaudRate(int baudRate) throws IOException;
+
+	/**
+	 * Drop all pending bytes
+	 *
+	 * @throws IOException
+	 */
+	void clear() throws IOException;
+
+	/**
+	 * Close the transport
+	 *
+	 * @throws IOException
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,19 @@
+package tijos.framework.sensor.dlt645;
+
+/**
+ * Receiver of the frames of a streaming read
+ *
+ * @author TiJOS
+ */
+public interface IDataStreamListener {
+
+	/**
+	 * Data of one frame arrived
+	 *
+	 * @param dataTag data tag
+	 * @param seq     0 for the first frame, then sequence number of the follow-up
+	 *                frame
+	 * @param data    data of the frame without data tag and sequence number
+	 */
+	void onDataChunk(int dataTag, int seq, byte[] data);
+}
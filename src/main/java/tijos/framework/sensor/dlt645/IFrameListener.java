@@ -0,0 +1,17 @@
+package tijos.framework.sensor.dlt645;
+
+/**
+ * Frame listener without data copies
+ *
+ * @author TiJOS
+ */
+public interface IFrameListener {
+
+	/**
+	 * Frame arrived from the remote node, the frame is a view over the receive
+	 * buffer which is recycled after the call returns
+	 *
+	 * @param frame frame view
+	 */
+	void onFrameArrived(DLT645Frame frame);
+}
@@ -0,0 +1,26 @@
+package tijos.framework.sensor.dlt645;
+
+/**
+ * Event listener for the multi-meter poller
+ *
+ * @author TiJOS
+ */
+public interface IMeterPollListener {
+
+	/**
+	 * Meter data arrived from a polled meter
+	 *
+	 * @param address meter address
+	 * @param dataTag data tag
+	 * @param data    meter data, null if the tag failed
+	 */
+	void onMeterData(byte[] address, int dataTag, byte[] data);
+
+	/**
+	 * The meter was polled later than its deadline
+	 *
+	 * @param address meter address
+	 * @param late    time in ms after the deadline
+	 */
+	void onDeadlineMissed(byte[] address, long late);
+}
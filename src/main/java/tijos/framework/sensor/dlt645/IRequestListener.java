@@ -0,0 +1,17 @@
+package tijos.framework.sensor.dlt645;
+
+/**
+ * Listener for asynchronous request completion
+ *
+ * @author TiJOS
+ */
+public interface IRequestListener {
+
+	/**
+	 * The request is done, the result could be fetched by
+	 * {@link DLT645Request#getData()} without blocking
+	 *
+	 * @param request completed request
+	 */
+	void onRequestDone(DLT645Request request);
+}
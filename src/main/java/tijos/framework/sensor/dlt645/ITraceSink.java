@@ -0,0 +1,17 @@
+package tijos.framework.sensor.dlt645;
+
+/**
+ * Output of the DLT645 trace messages
+ *
+ * @author TiJOS
+ */
+public interface ITraceSink {
+
+	/**
+	 * Trace message
+	 *
+	 * @param level   trace level
+	 * @param message message text
+	 */
+	void trace(int level, String message);
+}
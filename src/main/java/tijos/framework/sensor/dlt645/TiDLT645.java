@@ -1,19 +1,17 @@
 package tijos.framework.sensor.dlt645;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
 
 import tijos.framework.devicecenter.TiUART;
 import tijos.framework.util.Delay;
-import tijos.framework.util.Formatter;
 import tijos.framework.util.LittleBitConverter;
-import tijos.framework.util.crc.CheckSum8;
 
 /**
  * Hello world!
  */
-public class TiDLT645 extends Thread {
+public class TiDLT645 {
 
 	/***** data tags table, DI0 DI1 DI2 DI3 *******/
 	public static final int DLT645_TAG_FORWARD_ACTIVE_POWER = 0x00010000; // 表读数-总（正向有功）
@@ -44,11 +42,19 @@ public class TiDLT645 extends Thread {
 	public static final int DLT645_TAG_BACKWARD_ACTIVE_POWER_3 = 0x00020300;
 	public static final int DLT645_TAG_BACKWARD_ACTIVE_POWER_4 = 0x00020400;
 
+	// 数据块, DI1 = 0xFF
+	public static final int DLT645_TAG_FORWARD_ACTIVE_POWER_BLOCK = 0x0001FF00; // 总及各费率正向有功
+	public static final int DLT645_TAG_BACKWARD_ACTIVE_POWER_BLOCK = 0x0002FF00; // 总及各费率反向有功
+	public static final int DLT645_TAG_GRID_PHASE_VOLTAGE_BLOCK = 0x0201FF00; // 各相电压
+	public static final int DLT645_TAG_GRID_PHASE_CURRENT_BLOCK = 0x0202FF00; // 各相电流
+	public static final int DLT645_TAG_GRID_PHASE_POWER_BLOCK = 0x0203FF00; // 总及各相有功功率
+
 	/***** comm type *******/
 	public static final int DLT645_COMM_TYPE_MASK = 0xE0;
 	public static final int DLT645_MASTER_QUERY = 0x00;
 	public static final int DLT645_SLAVE_REPLY_NORMAL = 0x80;
 	public static final int DLT645_SLAVE_REPLY_ERROR = 0xC0;
+	public static final int DLT645_FOLLOW_UP_FLAG = 0x20; // more data follows
 
 	/***** comm bytes *******/
 	private static final int DLT645_LEADING_BYTE = 0xFE;
@@ -56,6 +62,7 @@ public class TiDLT645 extends Thread {
 
 	/***** function code *******/
 	private static final int DLT645_FUNC_CODE_MASK = 0x1F;
+	private static final int DLT645_REPLY_TYPE_MASK = 0xC0;
 	private static final int DLT645_PKT_TYPE_TIME_SYNC = 0x08;
 	private static final int DLT645_PKT_TYPE_READ_DATA = 0x11;
 	private static final int DLT645_PKT_TYPE_READ_DATA_LEFT = 0x12;
@@ -73,7 +80,7 @@ public class TiDLT645 extends Thread {
 	private static final int DLT645_PRE_LEADING_LEN = 4; // 4 0xEF
 	private static final int DLT645_DATA_TAG_LEN = 4; // data identification
 	private static final int DLT645_ADDRESS_LEN = 6; // meter address
-	private static final int DLT645_MAX_DATA_LEN = 12; // max data 4+8
+	private static final int DLT645_MAX_DATA_LEN = 200; // max data 4+196, block reads
 	private static final int DLT645_MIN_DATA_LEN = 6; // min data 4+2
 	private static final int DLT645_POWER_READING_LEN = 4; // power data len
 	private static final int DLT645_PASSWORD_LEN = 4; // password len
@@ -86,122 +93,445 @@ public class TiDLT645 extends Thread {
 	private static final int DLT645_ERROR_LEN = 1; // error message
 	private static final int DLT645_EXTRA_LEN = 4; // read message extra length
 
-	// Input stream for UART
-	InputStream input;
+	private static final int DLT645_SEQ_LEN = 1; // follow-up frame sequence number
+	private static final int DLT645_MAX_FOLLOW_UP = 255; // follow-up frames of a stream
+
+	private static final int DLT645_REPLY_TIMEOUT = 500; // reply timeout in ms before latency is measured
+	private static final int DLT645_RETRIES = 2; // retries after a lost reply
+	private static final int DLT645_RETRY_BACKOFF = 20; // first retry delay in ms, doubles each retry
+
+	/***** bus lanes, served in this order *******/
+	public static final int DLT645_LANE_CONTROL = 0; // relay commands, writes and alarm acks
+	public static final int DLT645_LANE_INTERACTIVE = 1; // reads of the application
+	public static final int DLT645_LANE_POLLING = 2; // background polling
+
+	/***** UART read loop *******/
+	private static final int DLT645_IDLE_WAIT = 100; // max wait in ms for received bytes when idle
+	private static final int DLT645_BUSY_WAIT = 20; // max wait in ms while a reply is expected
+
+	/***** baud rate *******/
+	private static final int DLT645_DEFAULT_BAUD_RATE = 2400; // default rate of the meters
+	private static final int DLT645_FALLBACK_TIMEOUTS = 3; // consecutive timeouts to fall back
+	private static final int DLT645_FALLBACK_RETRIES = 3; // attempts to switch the meter down
+	private static final int[] DLT645_BAUD_RATES = { 19200, 9600, 4800, 2400, 1200, 600 };
+
+	/***** probe result of wildcard address *******/
+	static final int DLT645_PROBE_NONE = 0; // no reply
+	static final int DLT645_PROBE_SINGLE = 1; // one valid reply
+	static final int DLT645_PROBE_COLLISION = 2; // several or garbled replies
+	private static final int DLT645_REQUEST_CACHE_SIZE = 64; // cached request frames
+	private static final int DLT645_WRITE_QUEUE_SIZE = 256; // outbound write buffer
+	private static final int DLT645_VALUE_CACHE_SIZE = 128; // cached meter data
+
+	// transport to the meters
+	IDLT645Transport transport;
 
-	TiUART uart;
+	// outbound frames coalesced into transport writes
+	private final DLT645WriteQueue writeQueue;
 
 	/*
 	 * meter address
 	 */
 	byte[] MeterAddress = new byte[DLT645_ADDRESS_LEN];
 
-	// Keep the UART read thread running
-	private boolean keeprunning = true;
+	// UART read loop, run by its own thread or an executor
+	private final DLT645Reader reader = new DLT645Reader(this);
+
+	// frame decoder and receive buffer of the UART read thread
+	private final DLT645Decoder decoder = new DLT645Decoder();
+	private final byte[] rxBuffer = new byte[64];
+
+	// frame decoder and receive buffer of the synchronous requests when the UART
+	// read thread is not running
+	private final DLT645Decoder replyDecoder = new DLT645Decoder();
+	private final byte[] replyBuffer = new byte[64];
+
+	// synchronous requests own the bus one at a time, one reusable request is
+	// enough
+	private final DLT645BusArbiter arbiter;
+	private final DLT645Request syncRequest = new DLT645Request();
+
+	// requests sent by the UART read thread one at a time, they wait in the lanes
+	// of the arbiter while the read thread is active, guarded by busLock
+	private final Object busLock = new Object();
+	private volatile DLT645Request inFlight = null;
+	private volatile boolean readerActive = false;
+
+	// encoded request frames of periodic polling
+	private final DLT645RequestCache requestCache = new DLT645RequestCache(DLT645_REQUEST_CACHE_SIZE);
+
+	// reads in progress, identical reads wait for them instead of the bus
+	private final ArrayList<DLT645Request> pendingReads = new ArrayList<DLT645Request>();
+	private int coalescedCount = 0;
+
+	// latest meter data of each address and tag
+	private final DLT645ValueCache valueCache = new DLT645ValueCache(this, DLT645_VALUE_CACHE_SIZE);
+
+	// reply latency, timeout and health of each meter
+	private final DLT645MeterHealth meterHealth = new DLT645MeterHealth(DLT645_REPLY_TIMEOUT);
+	private int retries = DLT645_RETRIES;
+	private int retryBackoff = DLT645_RETRY_BACKOFF;
+
+	// bus baud rate, rate the transport is set to and the negotiated rates
+	private final Object baudLock = new Object();
+	private int busBaudRate = DLT645_DEFAULT_BAUD_RATE;
+	private int lineBaudRate = DLT645_DEFAULT_BAUD_RATE;
+	private final DLT645BaudTable baudTable = new DLT645BaudTable();
 
 	IDeviceEventListener eventLisener = null;
 
+	IFrameListener frameListener = null;
+
 	/**
 	 * Initialize with Uart
 	 * 
 	 * @param uart
 	 */
 	public TiDLT645(TiUART uart) {
-		this.uart = uart;
-		this.input = new BufferedInputStream(new TiUartInputStream(uart), 256);
+		this(new TiUartTransport(uart));
+	}
+
+	/**
+	 * Initialize with transport
+	 * 
+	 * @param transport
+	 */
+	public TiDLT645(IDLT645Transport transport) {
+		this.transport = transport;
+		this.writeQueue = new DLT645WriteQueue(transport, DLT645_WRITE_QUEUE_SIZE);
+		this.arbiter = new DLT645BusArbiter(transport);
 
 		initMeterAddress();
 	}
 
-	@Override
-	public void run() {
+	/**
+	 * Start the UART read loop on a new thread, frames arrived are delivered to
+	 * the listeners and requests are sent by the loop
+	 */
+	public void start() {
+		reader.start(null);
+	}
 
-		while (true) {
-			try {
-				while (keeprunning) {
-					Delay.msDelay(10);
+	/**
+	 * Start the UART read loop as a task of the executor instead of a new thread,
+	 * such as a virtual thread per task executor when many buses are served
+	 * 
+	 * @param executor
+	 */
+	public void start(Executor executor) {
+		reader.start(executor);
+	}
 
-					while (input.available() < 10) {
-						Delay.msDelay(10);
-						continue;
-					}
+	/**
+	 * Stop the UART read loop and wait for it to exit, pending requests fail. The
+	 * bus could be started again or used without the read loop.
+	 */
+	public void stop() {
+		reader.stop();
+	}
 
-					int val = input.read();
+	/**
+	 * Whether the UART read loop is started
+	 * 
+	 * @return
+	 */
+	public boolean isRunning() {
+		return reader.isStarted();
+	}
 
-					// head
-					if (val == DLT645_START_BYTE) {
+	/**
+	 * Stop the UART read loop and close the transport
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		reader.stop();
+		transport.close();
+	}
 
-						CheckSum8 checksum = new CheckSum8();
-						checksum.update(val);
+	/**
+	 * One pass of the UART read loop: service the requests, wait for received
+	 * bytes and deliver the frames decoded
+	 * 
+	 * @throws IOException
+	 */
+	void receive() throws IOException {
+		serviceRequests();
 
-						byte[] address = new byte[DLT645_ADDRESS_LEN];
-						input.read(address);
+		int avail = transport.available(waitTime());
+		if (avail > 0) {
+			readReceived(avail);
+		}
+	}
 
-						checksum.update(address);
+	/**
+	 * Service the requests and deliver the frames of the bytes received without
+	 * waiting, called by the reactor driving the bus
+	 * 
+	 * @throws IOException
+	 */
+	void poll() throws IOException {
+		serviceRequests();
 
-						val = input.read();
-						if (val != DLT645_START_BYTE) {
-							checksum.update(val);
-							continue;
-						}
+		int avail;
+		while ((avail = transport.available()) > 0) {
+			readReceived(avail);
+		}
 
-						checksum.update(val);
+		// send the next request as soon as the reply is in
+		serviceRequests();
+	}
 
-						int funCode = input.read();
-						int dataLen = input.read();
+	/**
+	 * Time the requests need service, called by the reactor driving the bus
+	 * 
+	 * @return time in ms, Long.MAX_VALUE if nothing is pending
+	 */
+	long getServiceTime() {
+		DLT645Request request = inFlight;
+		if (request != null)
+			return request.deadline;
 
-						checksum.update(funCode, dataLen);
+		if (arbiter.isPending())
+			return System.currentTimeMillis();
 
-						int leftLen = dataLen + 2;
-						while (input.available() < leftLen) {
-							Delay.msDelay(10);
-							continue;
-						}
+		// flushed on the time threshold of the write queue
+		if (writeQueue.isPending())
+			return System.currentTimeMillis() + 1;
 
-						byte[] buffer = new byte[leftLen];
-						input.read(buffer);
+		return Long.MAX_VALUE;
+	}
 
-						checksum.update(buffer, 0, buffer.length - 2);
-						
-						int cs = checksum.getValue();
-			            int cs2 = (int)(buffer[leftLen -2] & 0xFF);			            
-			            if(cs != cs2) {
-			              throw new IOException("Invalid CheckSum");
-			            }
+	/**
+	 * Decode the received bytes and deliver the frames
+	 * 
+	 * @param avail number of bytes could be read
+	 * @throws IOException
+	 */
+	private void readReceived(int avail) throws IOException {
+		int len = transport.read(rxBuffer, 0, Math.min(avail, rxBuffer.length));
+		int pos = 0;
+		while (pos < len) {
+			pos += decoder.update(rxBuffer, pos, len - pos);
 
-						if (dataLen > 0) {
-							for (int i = 0; i < dataLen; ++i) {
-								buffer[i] = (byte) (buffer[i] - 0x33);
-							}
-						}
+			while (decoder.isFrameReady()) {
+				dispatchFrame();
+				decoder.release();
+			}
+		}
+	}
 
-						if (funCode == DLT645_PKT_TYPE_WRITE_DATA_RSP || funCode == DLT645_PKT_TYPE_WRITE_DATA_ERR) {
-							byte[] data = new byte[dataLen];
-							System.arraycopy(buffer, 0, data, 0, dataLen);
-							if (eventLisener != null) {
-								eventLisener.onDataArrived(funCode, 0, data);
-							}
+	/**
+	 * Time the read loop could wait for received bytes before the requests need
+	 * service
+	 * 
+	 * @return time in ms
+	 */
+	private int waitTime() {
+		DLT645Request request = inFlight;
+		if (request != null) {
+			long left = request.deadline - System.currentTimeMillis();
+			return (int) Math.max(1, Math.min(left, DLT645_BUSY_WAIT));
+		}
 
-						} else {
-							byte[] tag = new byte[DLT645_DATA_TAG_LEN];
-							System.arraycopy(buffer, 0, tag, 0, DLT645_DATA_TAG_LEN);
+		// flushed on the time threshold of the write queue
+		if (writeQueue.isPending())
+			return 1;
 
-							byte[] data = new byte[dataLen];
-							System.arraycopy(buffer, DLT645_DATA_TAG_LEN, data, 0, dataLen - DLT645_DATA_TAG_LEN);
+		return DLT645_IDLE_WAIT;
+	}
 
-							if (eventLisener != null) {
-								int dataTag = LittleBitConverter.ToInt32(tag, 0);
-								eventLisener.onDataArrived(funCode, dataTag, data);
-							}
-						}
-					}
+	/**
+	 * The read loop or a reactor is started, requests are queued for it from now
+	 * on
+	 * 
+	 * @return false if the bus is served already
+	 */
+	boolean readerStarted() {
+		synchronized (busLock) {
+			if (readerActive)
+				return false;
+
+			readerActive = true;
+			return true;
+		}
+	}
+
+	/**
+	 * The read loop or reactor is stopped, fail the requests it has not completed
+	 */
+	void readerStopped() {
+		DLT645Request request;
+		synchronized (busLock) {
+			readerActive = false;
+			request = arbiter.drain();
+		}
+
+		DLT645Request current = inFlight;
+		inFlight = null;
+		if (current != null) {
+			current.finish(null, new IOException("DLT645 UART read thread stopped"));
+		}
+
+		while (request != null) {
+			DLT645Request next = request.next;
+			request.next = null;
+			request.finish(null, new IOException("DLT645 UART read thread stopped"));
+			request = next;
+		}
+	}
+
+	/**
+	 * Complete the request waiting for the frame held by the decoder, or deliver
+	 * it to the event listeners
+	 */
+	private void dispatchFrame() {
+		DLT645Trace.frame(DLT645Trace.RX, decoder.getBuffer(), 0, decoder.getFrameLength());
+
+		DLT645Request request = inFlight;
+		if (request != null && isReplyOf(decoder, request)) {
+			inFlight = null;
+			if (!request.forward) {
+				request.setFrame(decoder);
+				finishRequest(request);
+				return;
+			}
+
+			// sent without waiting, the reply goes to the listeners
+			request.finish(null, null);
+		}
+
+		notifyListeners(decoder);
+	}
+
+	/**
+	 * Deliver the frame held by the decoder to the event listeners
+	 * 
+	 * @param frameDecoder
+	 */
+	private void notifyListeners(DLT645Decoder frameDecoder) {
+		DLT645Frame frame = frameDecoder.getFrame();
+		if (frameListener != null) {
+			frameListener.onFrameArrived(frame);
+		}
+
+		if (eventLisener == null)
+			return;
+
+		int funCode = frame.controlCode();
+		int dataLen = frame.dataLength();
+
+		if (funCode == DLT645_PKT_TYPE_WRITE_DATA_RSP || funCode == DLT645_PKT_TYPE_WRITE_DATA_ERR
+				|| dataLen < DLT645_DATA_TAG_LEN) {
+			byte[] data = new byte[dataLen];
+			frame.copyData(0, data, 0, dataLen);
+			eventLisener.onDataArrived(funCode, 0, data);
+		} else {
+			byte[] data = new byte[dataLen - DLT645_DATA_TAG_LEN];
+			frame.copyData(DLT645_DATA_TAG_LEN, data, 0, data.length);
+			eventLisener.onDataArrived(funCode, frameDecoder.getDataTag(), data);
+		}
+	}
+
+	/**
+	 * Fail the in-flight request if its reply timed out, flush the frames without
+	 * reply that waited long enough, then send the next queued request when the
+	 * bus is free. Frames without reply are packed into one write.
+	 */
+	private void serviceRequests() {
+		DLT645Request request = inFlight;
+		if (request != null) {
+			// nothing goes out while the meter replies
+			if (System.currentTimeMillis() < request.deadline)
+				return;
+
+			inFlight = null;
+			// a frame sent without waiting may get no reply at all
+			if (!request.forward) {
+				baudTable.timedOut(request.address, DLT645_FALLBACK_TIMEOUTS);
+				meterHealth.timedOut(request.address);
+
+				// an async request has a single attempt, the retry loop of the bus
+				// owner counts its own failures
+				if (!request.owned) {
+					meterHealth.failed(request.address);
+				}
+			}
+			request.finish(null, new DLT645TimeoutException("DLT645 Receive meter reading reply failed!"));
+		}
+
+		try {
+			writeQueue.flushIfDue();
+		} catch (IOException e) {
+			DLT645Trace.error("DLT645 write failed", e);
+		}
+
+		while (true) {
+			// the highest lane first
+			request = arbiter.poll();
+			if (request == null)
+				return;
+
+			try {
+				selectBaudRate(request.address);
+				if (request.noReply) {
+					postPkt(request.pkt);
+					request.finish(null, null);
+					continue;
 				}
+
+				request.startTimer();
+				inFlight = request;
+				sendPkt(request.pkt);
+				return;
 			} catch (IOException e) {
-				e.printStackTrace();
+				inFlight = null;
+				request.finish(null, e);
 			}
 		}
 	}
 
+	/**
+	 * Decode the reply of the request and finish it
+	 * 
+	 * @param request
+	 */
+	private void finishRequest(DLT645Request request) {
+		baudTable.replied(request.address);
+		meterHealth.replied(request.address, request.getLatency());
+
+		// relayed as it is
+		if (request.raw) {
+			request.finish(null, null);
+			return;
+		}
+
+		try {
+			byte[] data = decodeReply(request);
+			request.finish(data, null);
+		} catch (IOException e) {
+			request.finish(null, e);
+		}
+	}
+
+	/**
+	 * Queue the request in its lane, it is sent by the UART read thread
+	 * 
+	 * @param request
+	 * @return false if the UART read thread is not running
+	 */
+	private boolean submit(DLT645Request request) {
+		synchronized (busLock) {
+			if (!readerActive)
+				return false;
+
+			arbiter.offer(request);
+		}
+
+		transport.wakeup();
+		return true;
+	}
+
 	/**
 	 * Initialize meter address
 	 */
@@ -221,177 +551,984 @@ public class TiDLT645 extends Thread {
 	}
 
 	/**
-	 * Get meter address
+	 * Frame listener for frames arrived from remote node, the frame is a view over
+	 * the receive buffer and is only valid during the call
+	 *
+	 * @param listener
+	 */
+	public void setFrameListener(IFrameListener listener) {
+		this.frameListener = listener;
+	}
+
+	/**
+	 * Get meter address
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] readMeterAddress() throws IOException {
+		return queryMeterReading(MeterAddress, DLT645_PKT_TYPE_READ_ADDRESS, 0);
+	}
+
+	/**
+	 * query meter reading by data tag
+	 * 
+	 * @param dataTag
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] readMeterData(int dataTag) throws IOException {
+		return readMeterData(MeterAddress, dataTag);
+	}
+
+	/**
+	 * query meter reading by data tag from the meter with the specified address
+	 * 
+	 * @param address 6 bytes meter address
+	 * @param dataTag
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] readMeterData(byte[] address, int dataTag) throws IOException {
+		return readMeterData(address, dataTag, DLT645_LANE_INTERACTIVE);
+	}
+
+	/**
+	 * query meter reading by data tag in the bus lane, the lanes above it are
+	 * served first
+	 * 
+	 * @param address 6 bytes meter address
+	 * @param dataTag
+	 * @param lane    DLT645_LANE_CONTROL, DLT645_LANE_INTERACTIVE or
+	 *                DLT645_LANE_POLLING
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] readMeterData(byte[] address, int dataTag, int lane) throws IOException {
+		checkLane(lane);
+		return queryMeterReading(address, DLT645_PKT_TYPE_READ_DATA, dataTag, lane);
+	}
+
+	/**
+	 * query meter reading from the value cache, the meter is read only if the
+	 * cached value is older than the time to live of the tag. Concurrent callers
+	 * of the same value share one meter read.
+	 * 
+	 * @param address 6 bytes meter address
+	 * @param dataTag
+	 * @return copy of the meter data
+	 * @throws IOException
+	 */
+	public byte[] readMeterDataCached(byte[] address, int dataTag) throws IOException {
+		checkAddress(address);
+		return valueCache.get(address, dataTag);
+	}
+
+	/**
+	 * Latest meter data of each address and tag, for time to live settings
+	 * 
+	 * @return
+	 */
+	public DLT645ValueCache getValueCache() {
+		return valueCache;
+	}
+
+	/**
+	 * query meter reading and decode it by the format registered for the tag
+	 * 
+	 * @param dataTag registered data tag
+	 * @return reading, NaN if the reply is not valid BCD
+	 * @throws IOException
+	 */
+	public double readMeterValue(int dataTag) throws IOException {
+		return readMeterValue(MeterAddress, dataTag);
+	}
+
+	/**
+	 * query meter reading from the meter with the specified address and decode it
+	 * by the format registered for the tag
+	 * 
+	 * @param address 6 bytes meter address
+	 * @param dataTag registered data tag
+	 * @return reading, NaN if the reply is not valid BCD
+	 * @throws IOException
+	 */
+	public double readMeterValue(byte[] address, int dataTag) throws IOException {
+		DLT645TagRegistry registry = DLT645TagRegistry.getDefault();
+		if (!registry.contains(dataTag))
+			throw new IOException("DLT645 Unknown data tag " + Integer.toHexString(dataTag));
+
+		byte[] data = readMeterData(address, dataTag);
+		if (data.length < registry.getLength(dataTag))
+			throw new IOException("DLT645 Decode: reply data too short!");
+
+		return registry.decodeDouble(dataTag, data);
+	}
+
+	/**
+	 * read a data block in one request, the block tag has 0xFF as wildcard in
+	 * one of DI0, DI1 or DI2, such as DLT645_TAG_GRID_PHASE_VOLTAGE_BLOCK
+	 * 
+	 * @param blockTag block data tag
+	 * @param tags     data tag of each value in the block
+	 * @param values   reading of each value in the block
+	 * @return number of values
+	 * @throws IOException
+	 */
+	public int readMeterBlock(int blockTag, int[] tags, double[] values) throws IOException {
+		return readMeterBlock(MeterAddress, blockTag, tags, values);
+	}
+
+	/**
+	 * read a data block in one request from the meter with the specified address,
+	 * the values are decoded by the formats registered for their tags
+	 * 
+	 * @param address  6 bytes meter address
+	 * @param blockTag block data tag
+	 * @param tags     data tag of each value in the block
+	 * @param values   reading of each value in the block
+	 * @return number of values
+	 * @throws IOException
+	 */
+	public int readMeterBlock(byte[] address, int blockTag, int[] tags, double[] values) throws IOException {
+		DLT645TagRegistry registry = DLT645TagRegistry.getDefault();
+		if (!registry.isBlock(blockTag))
+			throw new IOException("DLT645 Not a block data tag " + Integer.toHexString(blockTag));
+
+		byte[] data = readMeterData(address, blockTag);
+		return registry.decodeBlock(blockTag, data, tags, values);
+	}
+
+	/**
+	 * query meter reading of a group of data tags, the next request is sent as
+	 * soon as the reply of the previous one is decoded
+	 * 
+	 * @param dataTags
+	 * @return meter data of each tag in the same order, null if the tag failed
+	 * @throws IOException
+	 */
+	public byte[][] readMeterData(int[] dataTags) throws IOException {
+		return readMeterData(MeterAddress, dataTags);
+	}
+
+	/**
+	 * query meter reading of a group of data tags from the meter with the
+	 * specified address
+	 * 
+	 * @param address  6 bytes meter address
+	 * @param dataTags
+	 * @return meter data of each tag in the same order, null if the tag failed
+	 * @throws IOException
+	 */
+	public byte[][] readMeterData(byte[] address, int[] dataTags) throws IOException {
+		return readMeterData(address, dataTags, DLT645_LANE_INTERACTIVE);
+	}
+
+	/**
+	 * query meter reading of a group of data tags in the bus lane, the bus is
+	 * given up between the tags so a request of a higher lane waits for one tag
+	 * at most, such as during a polling sweep
+	 * 
+	 * @param address  6 bytes meter address
+	 * @param dataTags
+	 * @param lane     DLT645_LANE_CONTROL, DLT645_LANE_INTERACTIVE or
+	 *                 DLT645_LANE_POLLING
+	 * @return meter data of each tag in the same order, null if the tag failed
+	 * @throws IOException
+	 */
+	public byte[][] readMeterData(byte[] address, int[] dataTags, int lane) throws IOException {
+		checkAddress(address);
+		checkLane(lane);
+
+		byte[][] meterData = new byte[dataTags.length][];
+
+		for (int i = 0; i < dataTags.length; i++) {
+			byte[] pkt = createSendPkt(address, DLT645_PKT_TYPE_READ_DATA, dataTags[i]);
+			try {
+				meterData[i] = transact(pkt, address, DLT645_PKT_TYPE_READ_DATA, dataTags[i], lane);
+			} catch (DLT645TimeoutException e) {
+				// no bus time on the rest of the tags of an unhealthy meter
+				if (!meterHealth.isHealthy(address))
+					break;
+			} catch (IOException e) {
+				// keep going with the rest of the tags
+			}
+		}
+
+		return meterData;
+	}
+
+	/**
+	 * read large meter data such as load profile or event log frame by frame, the
+	 * follow-up frames are requested with sequence numbers as long as the meter
+	 * flags more data. Other synchronous requests wait until the stream is done
+	 * except the ones of the control lane, they are sent between the frames.
+	 * 
+	 * @param address  6 bytes meter address
+	 * @param dataTag  data tag
+	 * @param listener receives the data of each frame as it arrives
+	 * @return number of frames
+	 * @throws IOException
+	 */
+	public int readMeterStream(byte[] address, int dataTag, IDataStreamListener listener) throws IOException {
+		checkAddress(address);
+
+		arbiter.acquire(DLT645_LANE_INTERACTIVE);
+		try {
+			byte[] pkt = createSendPkt(address, DLT645_PKT_TYPE_READ_DATA, dataTag);
+			byte[] data = streamExchange(pkt, address, DLT645_PKT_TYPE_READ_DATA, dataTag);
+			boolean more = (syncRequest.view.controlCode() & DLT645_FOLLOW_UP_FLAG) != 0;
+			listener.onDataChunk(dataTag, 0, data);
+
+			int seq = 0;
+			while (more) {
+				if (++seq > DLT645_MAX_FOLLOW_UP)
+					throw new IOException("DLT645 Too many follow-up frames!");
+
+				// the reply view is reused by the caller taking the bus meanwhile
+				arbiter.yieldBus();
+
+				pkt = createFollowUpPkt(address, dataTag, seq);
+				data = streamExchange(pkt, address, DLT645_PKT_TYPE_READ_DATA_LEFT, dataTag);
+
+				DLT645Frame frame = syncRequest.view;
+				if (frame.dataByte(frame.dataLength() - DLT645_SEQ_LEN) != seq)
+					throw new IOException("DLT645 Decode: follow-up frame sequence mismatch!");
+
+				more = (frame.controlCode() & DLT645_FOLLOW_UP_FLAG) != 0;
+				listener.onDataChunk(dataTag, seq, data);
+			}
+
+			return seq + 1;
+		} finally {
+			arbiter.release();
+		}
+	}
+
+	/**
+	 * Exchange a frame of a stream, the bus is held once more so it is kept
+	 * while waiting before a retry
+	 */
+	private byte[] streamExchange(byte[] pkt, byte[] address, int funCode, int dataTag) throws IOException {
+		arbiter.acquire(DLT645_LANE_INTERACTIVE);
+		try {
+			return exchange(pkt, address, funCode, dataTag);
+		} finally {
+			arbiter.release();
+		}
+	}
+
+	/**
+	 * query meter reading by data tag without blocking, the reply is correlated to
+	 * the request by meter address and data tag. The UART read thread must be
+	 * started.
+	 * 
+	 * @param address 6 bytes meter address
+	 * @param dataTag
+	 * @return request to get the meter data from
+	 * @throws IOException
+	 */
+	public DLT645Request readAsync(byte[] address, int dataTag) throws IOException {
+		return readAsync(address, dataTag, meterHealth.getTimeOut(address));
+	}
+
+	/**
+	 * query meter reading by data tag without blocking
+	 * 
+	 * @param address 6 bytes meter address
+	 * @param dataTag
+	 * @param timeOut reply timeout in ms counted from the time the request is sent
+	 * @return request to get the meter data from
+	 * @throws IOException
+	 */
+	public DLT645Request readAsync(byte[] address, int dataTag, int timeOut) throws IOException {
+		return readAsync(address, dataTag, timeOut, DLT645_LANE_INTERACTIVE);
+	}
+
+	/**
+	 * query meter reading by data tag without blocking in the bus lane, the
+	 * request waits while the lanes above it have requests queued
+	 * 
+	 * @param address 6 bytes meter address
+	 * @param dataTag
+	 * @param timeOut reply timeout in ms counted from the time the request is sent
+	 * @param lane    DLT645_LANE_CONTROL, DLT645_LANE_INTERACTIVE or
+	 *                DLT645_LANE_POLLING
+	 * @return request to get the meter data from
+	 * @throws IOException
+	 */
+	public DLT645Request readAsync(byte[] address, int dataTag, int timeOut, int lane) throws IOException {
+		checkAddress(address);
+		checkLane(lane);
+
+		if (!readerActive)
+			throw new IOException("DLT645 UART read thread is not started");
+
+		byte[] pkt = createSendPkt(address, DLT645_PKT_TYPE_READ_DATA, dataTag);
+
+		DLT645Request request = new DLT645Request();
+		request.prepare(address, DLT645_PKT_TYPE_READ_DATA, dataTag, pkt, timeOut);
+		request.lane = lane;
+		if (!submit(request))
+			throw new IOException("DLT645 UART read thread is not started");
+
+		return request;
+	}
+
+	/**
+	 * Send a request frame as it is and keep the reply frame without decoding
+	 * it, such as for a gateway relaying frames of remote clients. The reply is
+	 * correlated to the request by meter address, function code and data tag.
+	 * Read frames go in the interactive lane, the others in the control lane. The
+	 * UART read thread must be started.
+	 * 
+	 * @param frame request frame from the start byte to the end byte
+	 * @param off   start position
+	 * @param len   frame length
+	 * @return request to get the reply frame from, no reply frame if it timed
+	 *         out
+	 * @throws IOException if the frame is not a request
+	 */
+	public DLT645Request transferAsync(byte[] frame, int off, int len) throws IOException {
+		if (len < DLT645_FIXED_LEN + 2 || (frame[off] & 0xFF) != DLT645_START_BYTE
+				|| (frame[off + len - 1] & 0xFF) != 0x16)
+			throw new IOException("DLT645 invalid request frame");
+
+		DLT645Frame view = new DLT645Frame().wrap(frame, off, len);
+		int controlCode = view.controlCode();
+		if ((controlCode & DLT645_SLAVE_REPLY_NORMAL) != 0)
+			throw new IOException("DLT645 frame is not a request");
+
+		byte[] address = new byte[DLT645_ADDRESS_LEN];
+		view.getAddress(address, 0);
+
+		int dataTag = view.dataTag();
+
+		byte[] pkt = new byte[DLT645_PRE_LEADING_LEN + len];
+		for (int i = 0; i < DLT645_PRE_LEADING_LEN; i++) {
+			pkt[i] = (byte) DLT645_LEADING_BYTE;
+		}
+		System.arraycopy(frame, off, pkt, DLT645_PRE_LEADING_LEN, len);
+
+		DLT645Request request = new DLT645Request();
+		request.prepare(address, controlCode & DLT645_FUNC_CODE_MASK, dataTag, pkt, meterHealth.getTimeOut(address));
+		request.raw = true;
+		request.lane = isReadCode(request.funCode) ? DLT645_LANE_INTERACTIVE : DLT645_LANE_CONTROL;
+		if (!submit(request))
+			throw new IOException("DLT645 UART read thread is not started");
+
+		return request;
+	}
+
+	/**
+	 * write the specified tag data to meter with password and operator
+	 * 
+	 * @param password
+	 * @param operator
+	 * @param dataTag
+	 * @param data
+	 * @throws IOException
+	 */
+	public void writeMeterData(byte[] password, byte[] operator, int dataTag, byte[] data) throws IOException {
+		if (password.length != 4 || operator.length != 4)
+			throw new IOException("invalid password or oeprator length");
+
+		byte[] pkt = createWriteRequest(MeterAddress, DLT645_PKT_TYPE_WRITE_DATA, password, operator, dataTag, data);
+
+		transact(pkt, MeterAddress, DLT645_PKT_TYPE_WRITE_DATA, dataTag, DLT645_LANE_CONTROL);
+	}
+
+	/**
+	 * Send meter data tag reading request, the result should be returned from
+	 * 
+	 * @param dataTag
+	 * @throws IOException
+	 */
+	public void sendMeterReadingRequest(int dataTag) throws IOException {
+		byte[] pkt = createSendPkt(MeterAddress, DLT645_PKT_TYPE_READ_DATA, dataTag); // format of message
+
+		queuePkt(MeterAddress, pkt, DLT645_PKT_TYPE_READ_DATA, dataTag, DLT645_LANE_INTERACTIVE,
+				meterHealth.getTimeOut(MeterAddress));
+	}
+
+	/**
+	 * Send write command data request
+	 * 
+	 * @param password 4 bytes password
+	 * @param operator 4 bytes operator
+	 * @param dataTag
+	 * @param data
+	 * @throws IOException
+	 */
+	public void writeMeterDataRequest(byte[] password, byte[] operator, int dataTag, byte[] data) throws IOException {
+		if (password.length != 4 || operator.length != 4)
+			throw new IOException("invalid password or oeprator length");
+
+		byte[] pkt = createWriteRequest(MeterAddress, DLT645_PKT_TYPE_WRITE_DATA, password, operator, dataTag, data);
+		queuePkt(MeterAddress, pkt, DLT645_PKT_TYPE_WRITE_DATA, dataTag, DLT645_LANE_CONTROL,
+				meterHealth.getTimeOut(MeterAddress));
+	}
+
+	/**
+	 * Alarm response
+	 * 
+	 * @param dataTag
+	 * @throws IOException
+	 */
+	public void writeAlarmDataResponse(int dataTag) throws IOException {
+		byte[] pkt = createSendPkt(MeterAddress, DLT645_PKT_TYPE_READ_DATA_LEFT, dataTag);
+
+		// no reply, acks going out together share one write
+		queueNoReplyPkt(MeterAddress, pkt, DLT645_PKT_TYPE_READ_DATA_LEFT, dataTag, DLT645_LANE_CONTROL);
+	}
+
+	/**
+	 * Retries after a lost reply, the delay before each retry doubles
+	 * 
+	 * @param retries      number of retries
+	 * @param retryBackoff delay in ms before the first retry
+	 */
+	public void setRetryPolicy(int retries, int retryBackoff) {
+		this.retries = retries;
+		this.retryBackoff = retryBackoff;
+	}
+
+	/**
+	 * Number of reads answered by the reply of an identical read in progress
+	 * 
+	 * @return
+	 */
+	public int getCoalescedReadCount() {
+		synchronized (pendingReads) {
+			return coalescedCount;
+		}
+	}
+
+	/**
+	 * Bus lanes and the time the frames of each lane waited for the bus
+	 * 
+	 * @return
+	 */
+	public DLT645BusArbiter getBusArbiter() {
+		return arbiter;
+	}
+
+	/**
+	 * Reply latency, timeout and health of the meters
+	 * 
+	 * @return
+	 */
+	public DLT645MeterHealth getMeterHealth() {
+		return meterHealth;
+	}
+
+	/**
+	 * Set the baud rate of the bus, used by the meters without negotiated rate
+	 * 
+	 * @param baudRate
+	 * @throws IOException
+	 */
+	public void setBaudRate(int baudRate) throws IOException {
+		synchronized (baudLock) {
+			this.writeQueue.flush();
+			this.transport.setBaudRate(baudRate);
+			this.busBaudRate = baudRate;
+			this.lineBaudRate = baudRate;
+		}
+	}
+
+	/**
+	 * Baud rate used for the meter
+	 * 
+	 * @param address 6 bytes meter address
+	 * @return
+	 */
+	public int getBaudRate(byte[] address) {
+		synchronized (baudLock) {
+			return baudTable.getBaudRate(address, busBaudRate);
+		}
+	}
+
+	/**
+	 * Switch the meter to the fastest baud rate it accepts with the change comm
+	 * speed request, the rate is confirmed with a second request at the new rate.
+	 * The transport is switched to the rate of each meter before talking to it,
+	 * and the meter falls back to a lower rate after consecutive timeouts.
+	 * 
+	 * @param address     6 bytes meter address
+	 * @param maxBaudRate max baud rate to try
+	 * @return baud rate of the meter
+	 * @throws IOException if the transport could not change the baud rate
+	 */
+	public int negotiateBaudRate(byte[] address, int maxBaudRate) throws IOException {
+		checkAddress(address);
+		if (isBroadcast(address))
+			throw new IOException("DLT645 Baud rate is negotiated with a single meter");
+
+		arbiter.acquire(DLT645_LANE_INTERACTIVE);
+		try {
+			int current = getBaudRate(address);
+
+			// fail before the meter is switched if the transport could not follow
+			synchronized (baudLock) {
+				this.writeQueue.flush();
+				this.transport.setBaudRate(current);
+				lineBaudRate = current;
+			}
+
+			int ceiling = Math.min(maxBaudRate, baudTable.getCeiling(address));
+			for (int i = 0; i < DLT645_BAUD_RATES.length; i++) {
+				int rate = DLT645_BAUD_RATES[i];
+				if (rate > ceiling)
+					continue;
+
+				if (rate <= current)
+					break;
+
+				if (!changeSpeed(address, rate))
+					continue;
+
+				// the meter acks its current rate again if the line carries it
+				if (changeSpeed(address, rate))
+					return rate;
+
+				baudTable.setCeiling(address, lowerRate(rate));
+				fallBack(address);
+				return getBaudRate(address);
+			}
+
+			return current;
+		} finally {
+			arbiter.release();
+		}
+	}
+
+	/**
+	 * Negotiate the baud rate of each meter sharing the bus
+	 * 
+	 * @param addresses   meter addresses, such as the ones discovered
+	 * @param maxBaudRate max baud rate to try
+	 * @return baud rate of each meter
+	 * @throws IOException if the transport could not change the baud rate
+	 */
+	public int[] negotiateBaudRate(byte[][] addresses, int maxBaudRate) throws IOException {
+		int[] rates = new int[addresses.length];
+		for (int i = 0; i < addresses.length; i++) {
+			rates[i] = negotiateBaudRate(addresses[i], maxBaudRate);
+		}
+		return rates;
+	}
+
+	/**
+	 * Outbound queue of the transport, for flush thresholds and write counters
+	 * 
+	 * @return
+	 */
+	public DLT645WriteQueue getWriteQueue() {
+		return writeQueue;
+	}
+
+	/**
+	 * Convert BCD to reading
+	 * 
+	 * @param input
+	 * @param decimal
+	 * @return
+	 */
+	public double BCD2Double(byte[] input, int decimal) {
+		return BCD2Double(input, 0, input.length, decimal);
+	}
+
+	/**
+	 * Convert BCD field to reading
+	 * 
+	 * @param input
+	 * @param start
+	 * @param len
+	 * @param decimal
+	 * @return reading or NaN if the field is not valid BCD
+	 */
+	public static double BCD2Double(byte[] input, int start, int len, int decimal) {
+		/* result is in BCD format XXXXXX.XX, little endian */
+		return DLT645BCD.toDouble(DLT645BCD.decode(input, start, len), decimal);
+	}
+
+	/**
+	 * query meter reading by data tag
 	 * 
+	 * @param address
+	 * @param funCode
+	 * @param dataTag
 	 * @return
 	 * @throws IOException
 	 */
-	public byte[] readMeterAddress() throws IOException {
-		return queryMeterReading(DLT645_PKT_TYPE_READ_ADDRESS, 0);
+	private byte[] queryMeterReading(byte[] address, int funCode, int dataTag) throws IOException {
+		return queryMeterReading(address, funCode, dataTag, DLT645_LANE_INTERACTIVE);
 	}
 
 	/**
-	 * query meter reading by data tag
+	 * query meter reading by data tag in the bus lane
 	 * 
+	 * @param address
+	 * @param funCode
 	 * @param dataTag
+	 * @param lane
 	 * @return
 	 * @throws IOException
 	 */
-	public byte[] readMeterData(int dataTag) throws IOException {
-		return queryMeterReading(DLT645_PKT_TYPE_READ_DATA, dataTag);
+	private byte[] queryMeterReading(byte[] address, int funCode, int dataTag, int lane) throws IOException {
+		checkAddress(address);
+
+		byte[] pkt = createSendPkt(address, funCode, dataTag); // format of message
+
+		return transact(pkt, address, funCode, dataTag, lane);
 	}
 
 	/**
-	 * write the specified tag data to meter with password and operator
+	 * Send request packet and wait for the reply until the deadline, the caller is
+	 * woken as soon as the matching reply frame is decoded
 	 * 
-	 * @param password
-	 * @param operator
-	 * @param dataTag
-	 * @param data
+	 * @param pkt     request packet
+	 * @param address meter address
+	 * @param funCode function code
+	 * @param dataTag data tag
+	 * @param lane    bus lane
+	 * @return decoded meter data
 	 * @throws IOException
 	 */
-	public void writeMeterData(byte[] password, byte[] operator, int dataTag, byte[] data) throws IOException {
-		if (password.length != 4 || operator.length != 4)
-			throw new IOException("invalid password or oeprator length");
+	private byte[] transact(byte[] pkt, byte[] address, int funCode, int dataTag, int lane) throws IOException {
+		if (funCode == DLT645_PKT_TYPE_READ_DATA)
+			return coalescedRead(pkt, address, dataTag, lane);
+
+		arbiter.acquire(lane);
+		try {
+			return exchange(pkt, address, funCode, dataTag);
+		} finally {
+			arbiter.release();
+		}
+	}
 
-		byte[] pkt = createWriteRequest(DLT645_PKT_TYPE_WRITE_DATA, password, operator, dataTag, data);
-		sendPkt(pkt);
+	/**
+	 * Read meter data, a caller reading the same address and tag while another
+	 * read of it is in progress gets the reply of that read instead of sending
+	 * another request. Only a read of the same lane or a lane above is joined,
+	 * a control read does not wait behind a polling one. A caller owning the bus
+	 * already, such as a stream listener, sends its own read, the pending one
+	 * waits for the bus held by that caller.
+	 * 
+	 * @param pkt     request packet
+	 * @param address meter address
+	 * @param dataTag data tag
+	 * @param lane    bus lane of the read sent
+	 * @return decoded meter data, a copy for each caller
+	 * @throws IOException
+	 */
+	private byte[] coalescedRead(byte[] pkt, byte[] address, int dataTag, int lane) throws IOException {
+		DLT645Request read = null;
+		boolean owner = false;
+		boolean holding = arbiter.isOwner();
+		synchronized (pendingReads) {
+			for (int i = 0; !holding && i < pendingReads.size(); i++) {
+				DLT645Request r = pendingReads.get(i);
+				if (r.dataTag == dataTag && r.lane <= lane
+						&& memcmp(r.address, 0, address, 0, DLT645_ADDRESS_LEN) == 0) {
+					read = r;
+					break;
+				}
+			}
 
-		int expectRecvLen = DLT645_HEAD_TAIL_LEN;
-		byte[] recvPkt = getReply(expectRecvLen, 500);
+			if (read != null) {
+				coalescedCount++;
+			} else {
+				read = new DLT645Request();
+				read.prepare(address, DLT645_PKT_TYPE_READ_DATA, dataTag, pkt, 0);
+				read.lane = lane;
+				pendingReads.add(read);
+				owner = true;
+			}
+		}
 
-		if (recvPkt.length == 0) {
-			this.clearBuff();
-			throw new IOException("DLT645 Receive meter reading reply failed!");
+		if (!owner) {
+			byte[] data = read.getData();
+			byte[] copy = new byte[data.length];
+			System.arraycopy(data, 0, copy, 0, data.length);
+			return copy;
 		}
 
-		decodePkt(DLT645_PKT_TYPE_WRITE_DATA, recvPkt, dataTag);
+		byte[] data = null;
+		IOException error = null;
+		try {
+			arbiter.acquire(lane);
+			try {
+				data = exchange(pkt, address, DLT645_PKT_TYPE_READ_DATA, dataTag);
+			} finally {
+				arbiter.release();
+			}
+			return data;
+		} catch (IOException e) {
+			error = e;
+			throw e;
+		} finally {
+			synchronized (pendingReads) {
+				pendingReads.remove(read);
+			}
 
-		this.clearBuff();
+			if (data == null && error == null) {
+				error = new IOException("DLT645 Read meter data failed");
+			}
+			read.finish(data, error);
+		}
 	}
 
 	/**
-	 * Send meter data tag reading request, the result should be returned from
+	 * Send request packet with the synchronous request and wait for the reply, the
+	 * reply frame is kept in the view of the request. The caller must own the
+	 * bus, it is released while waiting before a retry.
 	 * 
-	 * @param dataTag
+	 * @param pkt     request packet
+	 * @param address meter address
+	 * @param funCode function code
+	 * @param dataTag data tag
+	 * @return decoded meter data
 	 * @throws IOException
 	 */
-	public void sendMeterReadingRequest(int dataTag) throws IOException {
-		byte[] pkt = createSendPkt(DLT645_PKT_TYPE_READ_DATA, dataTag); // format of message
+	private byte[] exchange(byte[] pkt, byte[] address, int funCode, int dataTag) throws IOException {
+		if (baudTable.isFallbackPending(address)) {
+			fallBack(address);
+		}
 
-		sendPkt(pkt);
+		// an unhealthy meter gets a single attempt when it is tried again
+		int attempts = meterHealth.isHealthy(address) ? retries + 1 : 1;
+		for (int i = 0;; i++) {
+			try {
+				return exchangeAtRate(pkt, address, funCode, dataTag);
+			} catch (DLT645TimeoutException e) {
+				if (i + 1 >= attempts) {
+					meterHealth.failed(address);
+					throw e;
+				}
+			}
+
+			arbiter.backOff(retryBackoff << i);
+		}
 	}
 
 	/**
-	 * Send write command data request
+	 * Send request packet at the baud rate of the meter and wait for the reply in
+	 * the lane of the caller. The caller must own the bus.
 	 * 
-	 * @param password 4 bytes password
-	 * @param operator 4 bytes operator
-	 * @param dataTag
-	 * @param data
+	 * @param pkt     request packet
+	 * @param address meter address
+	 * @param funCode function code
+	 * @param dataTag data tag
+	 * @return decoded meter data
 	 * @throws IOException
 	 */
-	public void writeMeterDataRequest(byte[] password, byte[] operator, int dataTag, byte[] data) throws IOException {
-		if (password.length != 4 || operator.length != 4)
-			throw new IOException("invalid password or oeprator length");
-
-		byte[] pkt = createWriteRequest(DLT645_PKT_TYPE_WRITE_DATA, password, operator, dataTag, data);
+	private byte[] exchangeAtRate(byte[] pkt, byte[] address, int funCode, int dataTag) throws IOException {
+		DLT645Request request = syncRequest;
+		request.prepare(address, funCode, dataTag, pkt, meterHealth.getTimeOut(address));
+		request.lane = arbiter.getOwnerLane();
+		request.queuedTime = arbiter.takeAskTime();
+		request.owned = true;
+
+		// the UART read thread sends the request and completes it
+		if (readerActive && submit(request))
+			return request.getData();
+
+		selectBaudRate(address);
+		arbiter.sent(request.lane, request.queuedTime);
+		request.startTimer();
 		sendPkt(pkt);
+		if (!receiveReply(request)) {
+			baudTable.timedOut(address, DLT645_FALLBACK_TIMEOUTS);
+			meterHealth.timedOut(address);
+			this.clearBuff();
+			throw new DLT645TimeoutException("DLT645 Receive meter reading reply failed!");
+		}
+
+		baudTable.replied(address);
+		meterHealth.replied(address, request.getLatency());
+		return decodeReply(request);
 	}
 
 	/**
-	 * Alarm response
+	 * Ask the meter to switch to the baud rate, the request goes out at the
+	 * current rate of the meter. The caller must own the bus.
 	 * 
-	 * @param dataTag
-	 * @throws IOException
+	 * @param address
+	 * @param rate
+	 * @return true if the meter acked the rate
 	 */
-	public void writeAlarmDataResponse(int dataTag) throws IOException {
-		byte[] pkt = createSendPkt(DLT645_PKT_TYPE_READ_DATA_LEFT, dataTag);
+	private boolean changeSpeed(byte[] address, int rate) throws IOException {
+		int code = baudRateCode(rate);
+		byte[] pkt = createChangeSpeedPkt(address, code);
+
+		byte[] ack;
+		try {
+			ack = exchangeAtRate(pkt, address, DLT645_PKT_TYPE_CHANGE_COMM_SPEED, 0);
+		} catch (IOException e) {
+			// rejected or no reply
+			return false;
+		}
 
-		sendPkt(pkt);
+		if ((ack[0] & 0xFF) != code)
+			return false;
+
+		synchronized (baudLock) {
+			baudTable.setBaudRate(address, rate == busBaudRate ? 0 : rate);
+		}
+		return true;
 	}
 
 	/**
-	 * Convert BCD to reading
+	 * Switch the meter one rate down after consecutive timeouts, the line does
+	 * not carry the rate reliably. If the meter could not be reached any more it
+	 * is assumed back at the bus baud rate as most meters return to the default
+	 * rate after a while without communication. The caller must own the bus.
 	 * 
-	 * @param input
-	 * @param decimal
-	 * @return
+	 * @param address
 	 */
-	public double BCD2Double(byte[] input, int decimal) {
-		return BCD2Double(input, 0, input.length, decimal);
-	}
-
-	public static double BCD2Double(byte[] input, int start, int len, int decimal) {
-		double reading = 0;
-		double coef = 1;
+	private void fallBack(byte[] address) throws IOException {
+		int rate = getBaudRate(address);
+		int lower = Math.max(lowerRate(rate), busBaudRate);
+		baudTable.setCeiling(address, lower);
+
+		for (int i = 0; i < DLT645_FALLBACK_RETRIES; i++) {
+			if (changeSpeed(address, lower))
+				return;
+		}
 
-		if (start + len > input.length)
-			return Double.NaN;
+		synchronized (baudLock) {
+			baudTable.setBaudRate(address, 0);
+		}
+		DLT645Trace.trace(DLT645Trace.ERROR, "DLT645 Fall back to bus baud rate " + busBaudRate);
+	}
 
+	/**
+	 * Switch the transport to the baud rate of the meter, frames queued at the old
+	 * rate are written first
+	 * 
+	 * @param address
+	 * @throws IOException
+	 */
+	private void selectBaudRate(byte[] address) throws IOException {
+		synchronized (baudLock) {
+			int rate = baudTable.getBaudRate(address, busBaudRate);
+			if (rate == lineBaudRate)
+				return;
+
+			this.writeQueue.flush();
+			this.transport.setBaudRate(rate);
+			lineBaudRate = rate;
+		}
+	}
 
-		/* result is in BCD format XXXXXX.XX, little endian */
-		for (int i = 0; i < len; ++i) {
-			reading += (input[start + i] & 0x0f) * coef;
-			reading += ((input[start + i] >>> 4) & 0x0F) * 10 * coef;
-			coef *= 100;
+	private static int lowerRate(int rate) {
+		for (int i = 0; i < DLT645_BAUD_RATES.length; i++) {
+			if (DLT645_BAUD_RATES[i] < rate)
+				return DLT645_BAUD_RATES[i];
 		}
+		return rate;
+	}
 
-		for (int i = 0; i < decimal; i++) {
-			reading /= 10.0;
+	/**
+	 * Baud rate code of the change comm speed request, 600 is bit 1 up to 19200
+	 * bit 6
+	 */
+	private static int baudRateCode(int rate) {
+		for (int i = 1; i <= 6; i++) {
+			if ((300 << i) == rate)
+				return 1 << i;
 		}
-		
-		return reading;
+		throw new IllegalArgumentException("DLT645 Invalid baud rate " + rate);
 	}
 
 	/**
-	 * query meter reading by data tag
+	 * Check if the frame held by the decoder is the reply of the request
 	 * 
-	 * @param dataTag
+	 * @param frameDecoder
+	 * @param request
 	 * @return
-	 * @throws IOException
 	 */
-	private byte[] queryMeterReading(int funCode, int dataTag) throws IOException {
-		int expectRecvLen = DLT645_HEAD_TAIL_LEN + DLT645_DATA_TAG_LEN + DLT645_POWER_READING_LEN + DLT645_EXTRA_LEN;
+	private boolean isReplyOf(DLT645Decoder frameDecoder, DLT645Request request) {
+		int controlCode = frameDecoder.getControlCode();
+		if ((controlCode & DLT645_SLAVE_REPLY_NORMAL) == 0)
+			return false;
 
-		byte[] pkt = createSendPkt(funCode, dataTag); // format of message
+		if ((controlCode & DLT645_FUNC_CODE_MASK) != (request.funCode & DLT645_FUNC_CODE_MASK))
+			return false;
 
-		sendPkt(pkt);
+		if (!isBroadcast(request.address) && memcmp(request.address, 0, frameDecoder.getBuffer(),
+				DLT645Decoder.OFFSET_ADDRESS, DLT645_ADDRESS_LEN) != 0)
+			return false;
 
-		byte[] recvPkt = getReply(expectRecvLen, 500);
+		// error reply carries no data tag
+		if ((request.funCode == DLT645_PKT_TYPE_READ_DATA || request.funCode == DLT645_PKT_TYPE_READ_DATA_LEFT)
+				&& (controlCode & DLT645_REPLY_TYPE_MASK) == DLT645_SLAVE_REPLY_NORMAL
+				&& frameDecoder.getDataTag() != request.dataTag)
+			return false;
 
-		if (recvPkt.length == 0) {
-			this.clearBuff();
-			throw new IOException("DLT645 Receive meter reading reply failed!");
+		return true;
+	}
+
+	private static boolean isBroadcast(byte[] address) {
+		for (int i = 0; i < DLT645_ADDRESS_LEN; i++) {
+			if (address[i] != (byte) 0xAA)
+				return false;
 		}
+		return true;
+	}
 
-		byte[] meterData = decodePkt(funCode, recvPkt, dataTag);
+	/**
+	 * Check the meter address length
+	 * 
+	 * @param address
+	 * @throws IOException
+	 */
+	private static void checkAddress(byte[] address) throws IOException {
+		if (address == null || address.length != DLT645_ADDRESS_LEN)
+			throw new IOException("invalid meter address length");
+	}
 
-		this.clearBuff();
+	/**
+	 * Check the bus lane
+	 * 
+	 * @param lane
+	 * @throws IOException
+	 */
+	private static void checkLane(int lane) throws IOException {
+		if (lane < DLT645_LANE_CONTROL || lane > DLT645_LANE_POLLING)
+			throw new IOException("DLT645 Invalid bus lane " + lane);
+	}
 
-		return meterData;
+	/**
+	 * Whether the function code reads the meter
+	 */
+	private static boolean isReadCode(int funCode) {
+		return funCode == DLT645_PKT_TYPE_READ_DATA || funCode == DLT645_PKT_TYPE_READ_DATA_LEFT
+				|| funCode == DLT645_PKT_TYPE_READ_ADDRESS;
 	}
 
 	/**
 	 * Create send packet by type
 	 * 
+	 * @param address
 	 * @param funCode
 	 * @param dataTag
 	 * @return
 	 */
-	private byte[] createSendPkt(int funCode, int dataTag) throws IOException {
+	byte[] createSendPkt(byte[] address, int funCode, int dataTag) throws IOException {
+		byte[] cached = requestCache.get(address, funCode, dataTag);
+		if (cached != null)
+			return cached;
+
 		int datalen = 0;
 		int pktLen;
-		byte[] data = new byte[DLT645_MAX_DATA_LEN];
 
 		switch (funCode) {
 		case DLT645_PKT_TYPE_READ_DATA:
 		case DLT645_PKT_TYPE_READ_DATA_LEFT:
 			datalen = DLT645_DATA_TAG_LEN;
-
-			byte[] tag = LittleBitConverter.GetBytes(dataTag);
-			System.arraycopy(tag, 0, data, 0, tag.length);
-
 			break;
 		case DLT645_PKT_TYPE_READ_ADDRESS:
 			datalen = 0;
@@ -413,26 +1550,101 @@ public class TiDLT645 extends Thread {
 
 		pkt[4] = DLT645_START_BYTE; // start byte
 
-		System.arraycopy(MeterAddress, 0, pkt, 5, MeterAddress.length);
+		System.arraycopy(address, 0, pkt, 5, DLT645_ADDRESS_LEN);
 
 		pkt[11] = DLT645_START_BYTE;
 		pkt[12] = (byte) (DLT645_MASTER_QUERY | funCode); // function code
 		pkt[13] = (byte) datalen;
 
-		if (datalen > 0) {
-			for (int i = 0; i < datalen; ++i) {
-				pkt[14 + i] = (byte) (data[i] + 0x33);
-			}
+		// data tag little endian
+		for (int i = 0; i < datalen; ++i) {
+			pkt[14 + i] = (byte) ((dataTag >>> (i * 8)) + 0x33);
 		}
 
 		pkt[pktLen - 2] = (byte) getChecksum(pkt, 4, pktLen - 6); // get the checksum excluding the leading bytes and
 																	// end byte
 		pkt[pktLen - 1] = 0x16;
 
+		requestCache.put(address, funCode, dataTag, pkt);
+
+		return pkt;
+	}
+
+	/**
+	 * Create follow-up frame request, data tag and sequence number
+	 * 
+	 * @param address
+	 * @param dataTag
+	 * @param seq     sequence number from 1
+	 * @return
+	 */
+	byte[] createFollowUpPkt(byte[] address, int dataTag, int seq) {
+		int datalen = DLT645_DATA_TAG_LEN + DLT645_SEQ_LEN;
+		int pktLen = datalen + DLT645_HEAD_TAIL_LEN;
+
+		byte[] pkt = new byte[pktLen];
+
+		/* add 4 leading bytes */
+		pkt[0] = (byte) DLT645_LEADING_BYTE;
+		pkt[1] = (byte) DLT645_LEADING_BYTE;
+		pkt[2] = (byte) DLT645_LEADING_BYTE;
+		pkt[3] = (byte) DLT645_LEADING_BYTE;
+
+		pkt[4] = DLT645_START_BYTE; // start byte
+
+		System.arraycopy(address, 0, pkt, 5, DLT645_ADDRESS_LEN);
+
+		pkt[11] = DLT645_START_BYTE;
+		pkt[12] = (byte) (DLT645_MASTER_QUERY | DLT645_PKT_TYPE_READ_DATA_LEFT); // function code
+		pkt[13] = (byte) datalen;
+
+		// data tag little endian
+		for (int i = 0; i < DLT645_DATA_TAG_LEN; ++i) {
+			pkt[14 + i] = (byte) ((dataTag >>> (i * 8)) + 0x33);
+		}
+		pkt[14 + DLT645_DATA_TAG_LEN] = (byte) (seq + 0x33);
+
+		pkt[pktLen - 2] = (byte) getChecksum(pkt, 4, pktLen - 6);
+		pkt[pktLen - 1] = 0x16;
+
+		return pkt;
+	}
+
+	/**
+	 * Create change comm speed request
+	 * 
+	 * @param address
+	 * @param code    baud rate code, one bit per rate
+	 * @return
+	 */
+	byte[] createChangeSpeedPkt(byte[] address, int code) {
+		int datalen = 1;
+		int pktLen = datalen + DLT645_HEAD_TAIL_LEN;
+
+		byte[] pkt = new byte[pktLen];
+
+		/* add 4 leading bytes */
+		pkt[0] = (byte) DLT645_LEADING_BYTE;
+		pkt[1] = (byte) DLT645_LEADING_BYTE;
+		pkt[2] = (byte) DLT645_LEADING_BYTE;
+		pkt[3] = (byte) DLT645_LEADING_BYTE;
+
+		pkt[4] = DLT645_START_BYTE; // start byte
+
+		System.arraycopy(address, 0, pkt, 5, DLT645_ADDRESS_LEN);
+
+		pkt[11] = DLT645_START_BYTE;
+		pkt[12] = (byte) (DLT645_MASTER_QUERY | DLT645_PKT_TYPE_CHANGE_COMM_SPEED); // function code
+		pkt[13] = (byte) datalen;
+		pkt[14] = (byte) (code + 0x33);
+
+		pkt[pktLen - 2] = (byte) getChecksum(pkt, 4, pktLen - 6);
+		pkt[pktLen - 1] = 0x16;
+
 		return pkt;
 	}
 
-	private byte[] createWriteRequest(int funCode, byte[] password, byte[] operator, int dataTag, byte[] data) {
+	byte[] createWriteRequest(byte[] address, int funCode, byte[] password, byte[] operator, int dataTag, byte[] data) {
 
 		int expectRecvLen = DLT645_HEAD_TAIL_LEN + DLT645_DATA_TAG_LEN + DLT645_PASSWORD_LEN + DLT645_OPERATOR_LEN
 				+ DLT645_EXTRA_LEN;
@@ -451,7 +1663,7 @@ public class TiDLT645 extends Thread {
 
 		pkt[pos++] = DLT645_START_BYTE; // start byte
 
-		System.arraycopy(MeterAddress, 0, pkt, pos, MeterAddress.length);
+		System.arraycopy(address, 0, pkt, pos, DLT645_ADDRESS_LEN);
 		pos += DLT645_ADDRESS_LEN;
 
 		pkt[pos++] = DLT645_START_BYTE;
@@ -485,78 +1697,59 @@ public class TiDLT645 extends Thread {
 	}
 
 	/**
-	 * Decode the tag data from received packet
+	 * Decode the tag data from the reply frame of the request
 	 * 
-	 * @param funCode    function code
-	 * @param Pkt
-	 * @param match_data
+	 * @param request completed request
 	 * @return
 	 * @throws IOException
 	 */
-	private byte[] decodePkt(int funCode, byte[] Pkt, int match_data) throws IOException {
-		int check_len;
-
-		/* delete all leading bytes */
-		int startPos = 0;
-		while (Pkt[startPos] != DLT645_START_BYTE && startPos < Pkt.length - 1) {
-			startPos++;
-		}
-
-		if (startPos >= Pkt.length || Pkt[startPos] != DLT645_START_BYTE) {
-			throw new IOException("DLT645 Decode: receive all FE packet or the start byte is not 68!");
-		}
-
-		// L
-		int data_len = Pkt[startPos + 9];
-
-		check_len = DLT645_FIXED_LEN + data_len;
-		int expCS = Pkt[startPos + check_len] & 0xFF;
-		int CS = getChecksum(Pkt, startPos, check_len);// excluding cs and end byte
-		if (expCS != CS) {
-			throw new IOException("DLT645 Decode: Checksum mismatch! CS " + CS + " exp CS " + expCS);
-		}
+	byte[] decodeReply(DLT645Request request) throws IOException {
+		DLT645Frame frame = request.view;
+		byte[] address = request.address;
+		int funCode = request.funCode;
+		int match_data = request.dataTag;
+		int data_len = frame.dataLength();
 
 		/* check if the receive pkt and the send pkt types match */
-		int controlCode = Pkt[startPos + 8];
+		int controlCode = frame.controlCode();
 		if ((funCode & DLT645_FUNC_CODE_MASK) != (controlCode & DLT645_FUNC_CODE_MASK)) {
 			throw new IOException("DLT645 Decode: Send and receive package types mismatch!");
 		}
 
-		for (int i = 0; i < data_len; ++i) // data area should subtract 0x33 to get the real values
-		{
-			Pkt[DLT645_FIXED_LEN + i + startPos] -= 0x33;
-		}
-
-		byte[] Type_Match = LittleBitConverter.GetBytes(match_data);
-
 		switch (funCode) {
 		case DLT645_PKT_TYPE_READ_ADDRESS:
 			if (data_len < DLT645_ADDRESS_LEN) {
 				throw new IOException("DLT645 Decode: receive read address data len mismatch!");
 			}
 
-			if (memcmp(Pkt, startPos + 1, Pkt, startPos + 10, DLT645_ADDRESS_LEN) != 0) {
+			byte[] meterAddress = new byte[DLT645_ADDRESS_LEN];
+			frame.copyData(0, meterAddress, 0, DLT645_ADDRESS_LEN);
+			if (!frame.isAddress(meterAddress)) {
 				throw new IOException("DLT645 receive read address data  mismatch!");
 			}
 
-			System.arraycopy(Pkt, startPos + 10, MeterAddress, 0, DLT645_ADDRESS_LEN);
+			System.arraycopy(meterAddress, 0, MeterAddress, 0, DLT645_ADDRESS_LEN);
+
+			// frames encoded for the old address are stale
+			requestCache.clear();
 
 			return this.MeterAddress;
 
 		case DLT645_PKT_TYPE_READ_DATA:
-			if (memcmp(MeterAddress, 0, Pkt, startPos + 1, DLT645_ADDRESS_LEN) != 0) {
+		case DLT645_PKT_TYPE_READ_DATA_LEFT:
+			if (!frame.isAddress(address)) {
 				throw new IOException("DLT645 Decode: receive reply reading meter address mismatch!");
 			}
 
-			if ((controlCode & DLT645_COMM_TYPE_MASK) == DLT645_SLAVE_REPLY_ERROR) {
+			if ((controlCode & DLT645_REPLY_TYPE_MASK) == DLT645_SLAVE_REPLY_ERROR) {
 				throw new IOException("DLT645 Decode: receive reply reading control code is D1!");
 			}
 
-			if (memcmp(Type_Match, 0, Pkt, startPos + 10, 4) != 0) {
+			if (frame.dataTag() != match_data) {
 				throw new IOException("DLT645 Decode: receive reply reading data identification mismatch!");
 			}
 
-			if (!((controlCode & DLT645_COMM_TYPE_MASK) == DLT645_SLAVE_REPLY_NORMAL)) {
+			if (!((controlCode & DLT645_REPLY_TYPE_MASK) == DLT645_SLAVE_REPLY_NORMAL)) {
 				throw new IOException("DLT645 Decode: receive reply reading control code is not read function!");
 			}
 
@@ -564,22 +1757,49 @@ public class TiDLT645 extends Thread {
 				throw new IOException("DLT645 Decode: receive reply reading data length mismatch!");
 			}
 
-			// 4 bytes reading follows N bytes data tag in the data area
-			byte[] meterData = new byte[data_len - DLT645_DATA_TAG_LEN];
-			System.arraycopy(Pkt, startPos + DLT645_FIXED_LEN + DLT645_DATA_TAG_LEN, meterData, 0, meterData.length);
+			// reading or data block follows 4 bytes data tag in the data area, the
+			// sequence number of a follow-up frame is the last byte
+			int valueLen = frame.valueLength();
+			if (funCode == DLT645_PKT_TYPE_READ_DATA_LEFT) {
+				valueLen -= DLT645_SEQ_LEN;
+			}
+
+			byte[] meterData = new byte[valueLen];
+			frame.copyValue(0, meterData, 0, meterData.length);
+
+			// complete values refresh the cache
+			if (funCode == DLT645_PKT_TYPE_READ_DATA && (controlCode & DLT645_FOLLOW_UP_FLAG) == 0
+					&& !isBroadcast(address)) {
+				valueCache.update(address, match_data, meterData);
+			}
 
 			return meterData;
 
+		case DLT645_PKT_TYPE_CHANGE_COMM_SPEED:
+			if (!frame.isAddress(address)) {
+				throw new IOException("DLT645 Decode: receive reply reading meter address mismatch!");
+			}
+
+			if ((controlCode & DLT645_REPLY_TYPE_MASK) != DLT645_SLAVE_REPLY_NORMAL || data_len < 1) {
+				throw new IOException("DLT645 Decode: change comm speed rejected!");
+			}
+
+			byte[] speed = new byte[1];
+			frame.copyData(0, speed, 0, 1);
+			return speed;
+
 		case DLT645_PKT_TYPE_WRITE_DATA:
 
-			if (memcmp(MeterAddress, 0, Pkt, startPos + 1, DLT645_ADDRESS_LEN) != 0) {
+			if (!frame.isAddress(address)) {
 				throw new IOException("DLT645 Decode: receive reply reading meter address mismatch!");
 			}
 
-			if (controlCode != 0x94) {
+			if (controlCode != DLT645_PKT_TYPE_WRITE_DATA_RSP) {
 				throw new IOException("DLT645 Decode: receive reply reading control code is not 0x94!");
 			}
 
+			valueCache.invalidate(address, match_data);
+
 			return null;
 
 		default:
@@ -596,10 +1816,12 @@ public class TiDLT645 extends Thread {
 	 * @return checksum value
 	 */
 	private static int getChecksum(byte[] data, int start, int len) {
-		CheckSum8 checksum = new CheckSum8();
-		checksum.update(data, start, len);
+		int checksum = 0;
+		for (int i = start; i < start + len; i++) {
+			checksum += data[i];
+		}
 
-		return checksum.getValue();
+		return checksum & 0xFF;
 	}
 
 	/**
@@ -630,48 +1852,244 @@ public class TiDLT645 extends Thread {
 	}
 
 	/**
-	 * Send packet to uart
+	 * Send packet expecting a reply to transport, it is written alone
 	 * 
 	 * @param pkt
 	 * @throws IOException
 	 */
 	private void sendPkt(byte[] pkt) throws IOException {
-		System.out.println("send " + Formatter.toHexString(pkt));
-		this.uart.write(pkt, 0, pkt.length);
+		DLT645Trace.frame(DLT645Trace.TX, pkt, 0, pkt.length);
+		this.writeQueue.send(pkt);
 	}
 
 	/**
-	 * Receive packet from uart within timeout
+	 * Queue packet expecting no reply, it is packed with the other ones into one
+	 * write. The write goes out before the next request or once the flush delay
+	 * of the write queue expires, never while a reply is expected.
 	 * 
-	 * @param expLen  expected length
-	 * @param timeOut timeout to read
-	 * @return
+	 * @param pkt
 	 * @throws IOException
 	 */
-	private byte[] getReply(int expLen, int timeOut) throws IOException {
-		while (this.input.available() < expLen) {
-			Delay.msDelay(100);
-			timeOut -= 100;
-			if (timeOut <= 0)
-				break;
+	private void postPkt(byte[] pkt) throws IOException {
+		DLT645Trace.frame(DLT645Trace.TX, pkt, 0, pkt.length);
+		this.writeQueue.add(pkt);
+	}
+
+	/**
+	 * Send packet expecting no reply. While the UART read thread is running the
+	 * packet waits in its lane and is packed with the other packets without reply
+	 * sent at the same time. Otherwise it is written once the caller has the bus.
+	 * 
+	 * @param address meter address
+	 * @param pkt
+	 * @param funCode function code
+	 * @param dataTag data tag
+	 * @param lane    bus lane
+	 * @throws IOException
+	 */
+	private void queueNoReplyPkt(byte[] address, byte[] pkt, int funCode, int dataTag, int lane) throws IOException {
+		if (readerActive) {
+			DLT645Request request = new DLT645Request();
+			request.prepare(address, funCode, dataTag, pkt, 0);
+			request.lane = lane;
+			request.noReply = true;
+			if (submit(request))
+				return;
+		}
+
+		arbiter.acquire(lane);
+		try {
+			selectBaudRate(address);
+			arbiter.sent(lane, arbiter.takeAskTime());
+			postPkt(pkt);
+			this.writeQueue.flush();
+		} finally {
+			arbiter.release();
+		}
+	}
+
+	/**
+	 * Send packet without waiting for the reply. While the UART read thread is
+	 * running the packet waits in its lane and keeps the bus until the reply
+	 * arrives or the time out expires, the reply goes to the listeners.
+	 * Otherwise the caller waits for the bus, sends the packet and keeps the bus
+	 * until the reply is delivered or the time out expires, so no other frame
+	 * goes out while the meter answers.
+	 * 
+	 * @param address meter address
+	 * @param pkt
+	 * @param funCode function code
+	 * @param dataTag data tag
+	 * @param lane    bus lane
+	 * @param timeOut time in ms the bus is kept for the reply
+	 * @throws IOException
+	 */
+	private void queuePkt(byte[] address, byte[] pkt, int funCode, int dataTag, int lane, int timeOut)
+			throws IOException {
+		if (readerActive) {
+			DLT645Request request = new DLT645Request();
+			request.prepare(address, funCode, dataTag, pkt, timeOut);
+			request.lane = lane;
+			request.forward = true;
+			if (submit(request))
+				return;
+		}
+
+		arbiter.acquire(lane);
+		try {
+			DLT645Request request = new DLT645Request();
+			request.prepare(address, funCode, dataTag, pkt, timeOut);
+
+			selectBaudRate(address);
+			arbiter.sent(lane, arbiter.takeAskTime());
+			request.startTimer();
+			sendPkt(pkt);
+
+			if (receiveReply(request)) {
+				notifyListeners(replyDecoder);
+			}
+		} finally {
+			arbiter.release();
+		}
+	}
+
+	/**
+	 * Receive reply frame of the request from uart before its deadline when the
+	 * UART read thread is not running, it returns as soon as the end byte of the
+	 * matching frame is decoded
+	 * 
+	 * @param request
+	 * @return true if the request is completed
+	 * @throws IOException
+	 */
+	private boolean receiveReply(DLT645Request request) throws IOException {
+		replyDecoder.reset();
+		while (true) {
+			int avail = this.transport.available();
+			if (avail > 0) {
+				int len = this.transport.read(replyBuffer, 0, Math.min(avail, replyBuffer.length));
+				int pos = 0;
+				while (pos < len) {
+					pos += replyDecoder.update(replyBuffer, pos, len - pos);
+					if (!replyDecoder.isFrameReady())
+						continue;
+
+					DLT645Trace.frame(DLT645Trace.RX, replyDecoder.getBuffer(), 0, replyDecoder.getFrameLength());
+					if (isReplyOf(replyDecoder, request)) {
+						request.setFrame(replyDecoder);
+						return true;
+					}
+				}
+				continue;
+			}
+
+			if (System.currentTimeMillis() >= request.deadline)
+				return false;
+
+			Delay.msDelay(1);
 		}
+	}
+
+	/**
+	 * Send read request to the wildcard address and listen to all the replies, the
+	 * 0xA nibbles of the pattern match any digit. Several meters replying at the
+	 * same time garble the frames, which shows as checksum errors, incomplete
+	 * frames or more than one frame. The UART read thread must not be running.
+	 * 
+	 * @param pattern   6 bytes address with 0xA wildcard nibbles
+	 * @param dataTag   data tag supported by all meters
+	 * @param found     address of the meter on DLT645_PROBE_SINGLE
+	 * @param quietTime time in ms to wait for more replies after a frame
+	 * @return DLT645_PROBE_NONE, DLT645_PROBE_SINGLE or DLT645_PROBE_COLLISION
+	 * @throws IOException
+	 */
+	int probe(byte[] pattern, int dataTag, byte[] found, int quietTime) throws IOException {
+		arbiter.acquire(DLT645_LANE_INTERACTIVE);
+		try {
+			if (readerActive)
+				throw new IOException("DLT645 Probe is not allowed while the UART read thread is running");
+
+			byte[] pkt = createSendPkt(pattern, DLT645_PKT_TYPE_READ_DATA, dataTag);
+
+			selectBaudRate(pattern);
+			this.clearBuff();
+			int errors = replyDecoder.getErrorCount();
+			sendPkt(pkt);
+
+			long deadline = System.currentTimeMillis() + DLT645_REPLY_TIMEOUT;
+			int received = 0;
+			int frames = 0;
+			boolean valid = true;
+
+			while (System.currentTimeMillis() < deadline) {
+				int avail = this.transport.available();
+				if (avail <= 0) {
+					Delay.msDelay(1);
+					continue;
+				}
+
+				int len = this.transport.read(replyBuffer, 0, Math.min(avail, replyBuffer.length));
+				received += len;
 
-		byte[] reply = new byte[this.input.available()];
+				int pos = 0;
+				while (pos < len) {
+					pos += replyDecoder.update(replyBuffer, pos, len - pos);
+					if (!replyDecoder.isFrameReady())
+						continue;
+
+					DLT645Trace.frame(DLT645Trace.RX, replyDecoder.getBuffer(), 0, replyDecoder.getFrameLength());
+
+					if (frames++ == 0) {
+						replyDecoder.getAddress(found, 0);
+						int controlCode = replyDecoder.getControlCode();
+						valid = (controlCode & DLT645_SLAVE_REPLY_NORMAL) != 0
+								&& (controlCode & DLT645_FUNC_CODE_MASK) == DLT645_PKT_TYPE_READ_DATA
+								&& matchesPattern(pattern, found);
+					}
+
+					// wait a little longer for other replies
+					deadline = Math.min(deadline, System.currentTimeMillis() + quietTime);
+				}
+			}
+
+			boolean clean = replyDecoder.getErrorCount() == errors && replyDecoder.getPendingLength() == 0;
+			this.clearBuff();
+
+			if (received == 0)
+				return DLT645_PROBE_NONE;
 
-		this.input.read(reply);
+			if (frames == 1 && valid && clean)
+				return DLT645_PROBE_SINGLE;
+
+			return DLT645_PROBE_COLLISION;
+		} finally {
+			arbiter.release();
+		}
+	}
 
-		return reply;
+	/**
+	 * Check the address against the pattern, 0xA nibble matches any digit
+	 */
+	private static boolean matchesPattern(byte[] pattern, byte[] address) {
+		for (int i = 0; i < DLT645_ADDRESS_LEN; i++) {
+			int p = pattern[i];
+			int a = address[i];
+			if ((p & 0xF0) != 0xA0 && (p & 0xF0) != (a & 0xF0))
+				return false;
+			if ((p & 0x0F) != 0x0A && (p & 0x0F) != (a & 0x0F))
+				return false;
+		}
+		return true;
 	}
 
 	/**
-	 * clear UART buffer
+	 * clear transport buffer
 	 * 
 	 * @throws IOException
 	 */
 	private void clearBuff() throws IOException {
-		this.uart.clear(TiUART.BUFF_WR);
-		while (this.input.read() > 0)
-			;
+		this.transport.clear();
+		this.replyDecoder.reset();
 	}
 
 
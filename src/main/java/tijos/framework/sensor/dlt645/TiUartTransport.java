@@ -0,0 +1,96 @@
+package tijos.framework.sensor.dlt645;
+
+import java.io.IOException;
+
+import tijos.framework.devicecenter.TiUART;
+import tijos.framework.util.Delay;
+
+/**
+ * Transport over TiJOS UART
+ *
+ * @author TiJOS
+ */
+public class TiUartTransport implements IDLT645Transport {
+
+	// the UART has no receive event, it is polled faster on short waits which
+	// are made while a reply is expected
+	private static final int SHORT_WAIT = 20;
+	private static final int FAST_POLL_INTERVAL = 1;
+	private static final int POLL_INTERVAL = 10;
+
+	private final TiUART uart;
+
+	private final byte[] drain = new byte[32];
+
+	private volatile boolean wakeup = false;
+
+	public TiUartTransport(TiUART uart) {
+		this.uart = uart;
+	}
+
+	/**
+	 * The UART under the transport
+	 *
+	 * @return
+	 */
+	public TiUART getUart() {
+		return uart;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return this.uart.available();
+	}
+
+	@Override
+	public int available(int timeOut) throws IOException {
+		int interval = timeOut <= SHORT_WAIT ? FAST_POLL_INTERVAL : POLL_INTERVAL;
+		long deadline = System.currentTimeMillis() + timeOut;
+
+		while (true) {
+			int avail = this.uart.available();
+			if (avail > 0 || wakeup) {
+				wakeup = false;
+				return avail;
+			}
+
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0)
+				return 0;
+
+			Delay.msDelay((int) Math.min(left, interval));
+		}
+	}
+
+	@Override
+	public void wakeup() {
+		wakeup = true;
+	}
+
+	@Override
+	public int read(byte[] buffer, int off, int len) throws IOException {
+		return this.uart.read(buffer, off, len);
+	}
+
+	@Override
+	public void write(byte[] buffer, int off, int len) throws IOException {
+		this.uart.write(buffer, off, len);
+	}
+
+	@Override
+	public void setBaudRate(int baudRate) throws IOException {
+		this.uart.setWorkParameters(8, 1, TiUART.PARITY_EVEN, baudRate);
+	}
+
+	@Override
+	public void clear() throws IOException {
+		this.uart.clear(TiUART.BUFF_WR);
+		while (this.uart.available() > 0 && this.uart.read(drain, 0, drain.length) > 0)
+			;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.uart.close();
+	}
+}
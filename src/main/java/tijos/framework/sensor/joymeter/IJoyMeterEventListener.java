@@ -8,10 +8,10 @@ package tijos.framework.sensor.joymeter;
 public interface IJoyMeterEventListener {
 
 	/**
-	 * Data arrived and could be access from TiJoyMeter
-	 * @param meter
+	 * Data arrived, the reading is also the latest one of TiJoyMeter
+	 * @param reading
 	 */
-	void onMeterDataArrived(TiJoyMeter meter);
+	void onMeterDataArrived(JoyMeterReading reading);
 	
 	
 	void onAlarmOverCurrent(long alarmTime, double current);
@@ -0,0 +1,124 @@
+package tijos.framework.sensor.joymeter;
+
+/**
+ * One decoded reading of the joy-meter. A reading is immutable, a new one is
+ * published for each measurement, so the values always belong to the same
+ * measurement and the reading can be kept as long as needed.
+ *
+ * @author TiJOS
+ */
+public class JoyMeterReading {
+
+	private final long sequence;
+
+	private final long measureTime;
+	private final double remaining;
+	private final double history;
+	private final double current;
+	private final double voltage;
+	private final double power;
+	private final double powerFactor;
+	private final int switchStatus;
+
+	JoyMeterReading(long sequence, long measureTime, double remaining, double history, double current,
+			double voltage, double power, double powerFactor, int switchStatus) {
+		this.sequence = sequence;
+		this.measureTime = measureTime;
+		this.remaining = remaining;
+		this.history = history;
+		this.current = current;
+		this.voltage = voltage;
+		this.power = power;
+		this.powerFactor = powerFactor;
+		this.switchStatus = switchStatus;
+	}
+
+	/**
+	 * Number of the reading, increasing with each reading published by the
+	 * meter
+	 *
+	 * @return
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * 计量时间（格林尼治）（hex）
+	 *
+	 * @return
+	 */
+	public long getMeasureTime() {
+		return measureTime;
+	}
+
+	/**
+	 * 剩余电量（kWh）
+	 *
+	 * @return
+	 */
+	public double getRemaining() {
+		return remaining;
+	}
+
+	/**
+	 * 历史电量(kWh)
+	 *
+	 * @return
+	 */
+	public double getHistory() {
+		return history;
+	}
+
+	/**
+	 * 当前电流(A)
+	 *
+	 * @return
+	 */
+	public double getCurrent() {
+		return current;
+	}
+
+	/**
+	 * 当前电压(V)
+	 *
+	 * @return
+	 */
+	public double getVoltage() {
+		return voltage;
+	}
+
+	/**
+	 * 当前功率(W)
+	 *
+	 * @return
+	 */
+	public double getPower() {
+		return power;
+	}
+
+	/**
+	 * 功率因数
+	 *
+	 * @return
+	 */
+	public double getPowerFactor() {
+		return powerFactor;
+	}
+
+	/**
+	 * 开合闸状态 0合闸 1断闸
+	 *
+	 * @return
+	 */
+	public int getSwitchStatus() {
+		return switchStatus;
+	}
+
+	@Override
+	public String toString() {
+		return "time " + this.measureTime + " left " + this.remaining + " history " + this.history + " current "
+				+ this.current + " voltage " + this.voltage + " power " + this.power + " powerfactor "
+				+ this.powerFactor + " switch " + this.switchStatus;
+	}
+}
@@ -3,13 +3,15 @@ package tijos.framework.sensor.joymeter;
 import java.io.IOException;
 
 import tijos.framework.devicecenter.TiUART;
-import tijos.framework.sensor.dlt645.IDeviceEventListener;
+import tijos.framework.sensor.dlt645.DLT645BusArbiter;
+import tijos.framework.sensor.dlt645.DLT645Frame;
+import tijos.framework.sensor.dlt645.DLT645Trace;
+import tijos.framework.sensor.dlt645.IFrameListener;
 import tijos.framework.sensor.dlt645.TiDLT645;
 import tijos.framework.util.Delay;
-import tijos.framework.util.Formatter;
 import tijos.framework.util.LittleBitConverter;
 
-public class TiJoyMeter implements IDeviceEventListener {
+public class TiJoyMeter implements IFrameListener {
 
 	private TiDLT645 dlt645;
 
@@ -17,45 +19,11 @@ public class TiJoyMeter implements IDeviceEventListener {
 
 	private static final int JOYMETER_TAG_SWITCH = 0X0400050A;
 
-	/**
-	 * 计量时间（格林尼治）（hex）
-	 */
-	public long measureTime = 0;
-
-	/**
-	 * 剩余电量（kWh）
-	 */
-	public double remaining;
-
-	/**
-	 * 历史电量(kWh)
-	 */
-	public double hisotry;
-
-	/**
-	 * 当前电流(A)
-	 */
-	public double current;
+	private final Object readingLock = new Object();
+	private long readingCount = 0;
 
-	/**
-	 * 当前电压(V)
-	 */
-	public double voltage;
-
-	/**
-	 * 当前功率(W)
-	 */
-	public double power;
-
-	/**
-	 * 功率因数
-	 */
-	public double powerfactor;
-
-	/**
-	 * 开合闸状态 0合闸 1断闸
-	 */
-	public int switchStatus;
+	// latest reading, immutable once published
+	private volatile JoyMeterReading latest;
 
 	IJoyMeterEventListener evtListener;
 
@@ -63,6 +31,15 @@ public class TiJoyMeter implements IDeviceEventListener {
 		dlt645 = new TiDLT645(uart);
 	}
 
+	/**
+	 * Latest reading of the meter, the values are consistent without locking
+	 * 
+	 * @return reading or null if the meter has not been read
+	 */
+	public JoyMeterReading getReading() {
+		return latest;
+	}
+
 	/**
 	 * Set event listener for data arriving
 	 * 
@@ -76,7 +53,7 @@ public class TiJoyMeter implements IDeviceEventListener {
 	 * Start UART data monitor
 	 */
 	public void start() {
-		dlt645.setEventListener(this);
+		dlt645.setFrameListener(this);
 		dlt645.start();
 	}
 
@@ -92,26 +69,22 @@ public class TiJoyMeter implements IDeviceEventListener {
 	/**
 	 * Read joymeter's measuring data
 	 * 
+	 * @return reading published
 	 * @throws IOException
 	 */
-	public void readMeter() throws IOException {
+	public JoyMeterReading readMeter() throws IOException {
 		byte[] meterData = dlt645.readMeterData(JOYMETER_TAG_CURRENT_DATA);
 		if (meterData.length < 27)
 			throw new IOException("Invalid data length");
 
-		this.measureTime = LittleBitConverter.ToUInt32(meterData, 0);
-		this.remaining = dlt645.BCD2Double(meterData, 4, 4, 2);
-		this.hisotry = dlt645.BCD2Double(meterData, 8, 4, 2);
-		this.current = dlt645.BCD2Double(meterData, 12, 4, 3);
-		this.voltage = dlt645.BCD2Double(meterData, 16, 4, 2);
-		this.power = dlt645.BCD2Double(meterData, 20, 4, 2);
-		this.powerfactor = dlt645.BCD2Double(meterData, 24, 2, 3);
-
-		this.switchStatus = meterData[26];
+		return publish(LittleBitConverter.ToUInt32(meterData, 0), TiDLT645.BCD2Double(meterData, 4, 4, 2),
+				TiDLT645.BCD2Double(meterData, 8, 4, 2), TiDLT645.BCD2Double(meterData, 12, 4, 3),
+				TiDLT645.BCD2Double(meterData, 16, 4, 2), TiDLT645.BCD2Double(meterData, 20, 4, 2),
+				TiDLT645.BCD2Double(meterData, 24, 2, 3), meterData[26]);
 	}
 
 	/**
-	 * 远程合闸
+	 * 远程合闸, sent in the control lane ahead of the queued reads
 	 * 
 	 * @param password
 	 * @param operator
@@ -125,7 +98,7 @@ public class TiJoyMeter implements IDeviceEventListener {
 	}
 
 	/**
-	 * 远程拉闸
+	 * 远程拉闸, sent in the control lane ahead of the queued reads
 	 * 
 	 * @param password
 	 * @param operator
@@ -138,6 +111,15 @@ public class TiJoyMeter implements IDeviceEventListener {
 		dlt645.writeMeterDataRequest(password, operator, JOYMETER_TAG_SWITCH, data);
 	}
 
+	/**
+	 * Bus lanes of the meter UART and the time the frames of each lane waited
+	 * 
+	 * @return
+	 */
+	public DLT645BusArbiter getBusArbiter() {
+		return dlt645.getBusArbiter();
+	}
+
 	/**
 	 * Send meter request to UART for joy-meter
 	 * 
@@ -148,110 +130,126 @@ public class TiJoyMeter implements IDeviceEventListener {
 	}
 
 	@Override
-	public void onDataArrived(int funCode, int dataTag, byte[] data) {
+	public void onFrameArrived(DLT645Frame frame) {
+		int funCode = frame.controlCode();
+		int dataTag = frame.dataTag();
 
-		System.out.println(
-				"funCode " + funCode + " tag " + Integer.toHexString(dataTag) + " data " + Formatter.toHexString(data));
+		if (DLT645Trace.isEnabled(DLT645Trace.DEBUG)) {
+			DLT645Trace.trace(DLT645Trace.DEBUG,
+					"funCode " + funCode + " tag " + Integer.toHexString(dataTag) + " len " + frame.dataLength());
+		}
 
 		try {
 			if (dataTag == JOYMETER_TAG_CURRENT_DATA) {
-				parseMeterData(dataTag, data);
+				parseMeterData(frame);
 			} else if ((dataTag >> 24) == 0x08) {
 				dlt645.writeAlarmDataResponse(dataTag);
-				parseAlarmData(dataTag, data);
+				parseAlarmData(dataTag, frame);
 			}
 			else if(dataTag == 0) {
 				if(funCode == 0x94) {
-					System.out.println(" ok " + data[0]);					
+					DLT645Trace.trace(DLT645Trace.INFO, "write ok");
 				}
-				else if(funCode == 0xD4) {
-				System.out.println("error " + data[0]);
+				else if(funCode == 0xD4 && frame.dataLength() > 0) {
+					if (DLT645Trace.isEnabled(DLT645Trace.ERROR)) {
+						DLT645Trace.trace(DLT645Trace.ERROR, "write error " + frame.dataByte(0));
+					}
 				}
 			}
 
 		} catch (Exception ex) {
-			ex.printStackTrace();
+			DLT645Trace.error("JoyMeter frame failed", ex);
 		}
 	}
 
 	@Override
 	public String toString() {
-		return "time " + this.measureTime + " left " + this.remaining + " history " + this.hisotry + " current "
-				+ this.current + " voltage " + this.voltage + " power " + this.power + " powerfactor "
-				+ this.powerfactor + " switch " + this.switchStatus;
+		JoyMeterReading reading = latest;
+		return reading == null ? "no reading" : reading.toString();
 	}
 
 	/**
 	 * Parse meter data from response
 	 * 
-	 * @param tag
-	 * @param meterData
+	 * @param frame
 	 * @throws IOException
 	 */
-	private void parseMeterData(int dataTag, byte[] meterData) throws IOException {
+	private void parseMeterData(DLT645Frame frame) throws IOException {
 
-		if (meterData.length < 27)
+		if (frame.valueLength() < 27)
 			throw new IOException("Invalid data length");
 
-		this.measureTime = LittleBitConverter.ToUInt32(meterData, 0);
-		this.remaining = dlt645.BCD2Double(meterData, 4, 4, 2);
-		this.hisotry = dlt645.BCD2Double(meterData, 8, 4, 2);
-		this.current = dlt645.BCD2Double(meterData, 12, 4, 3);
-		this.voltage = dlt645.BCD2Double(meterData, 16, 4, 2);
-		this.power = dlt645.BCD2Double(meterData, 20, 4, 2);
-		this.powerfactor = dlt645.BCD2Double(meterData, 24, 2, 3);
+		JoyMeterReading reading = publish(frame.uint32(0), frame.bcdField(4, 4, 2), frame.bcdField(8, 4, 2),
+				frame.bcdField(12, 4, 3), frame.bcdField(16, 4, 2), frame.bcdField(20, 4, 2), frame.bcdField(24, 2, 3),
+				frame.valueByte(26));
+
+		if (evtListener != null) {
+			evtListener.onMeterDataArrived(reading);
+		}
+	}
 
-		this.switchStatus = meterData[26];
+	/**
+	 * Publish a new reading as the latest one
+	 */
+	private JoyMeterReading publish(long measureTime, double remaining, double history, double current,
+			double voltage, double power, double powerFactor, int switchStatus) {
+		JoyMeterReading reading;
+
+		// readMeter and the UART thread could both publish
+		synchronized (readingLock) {
+			reading = new JoyMeterReading(++readingCount, measureTime, remaining, history, current, voltage, power,
+					powerFactor, switchStatus);
+			latest = reading;
+		}
 
-		evtListener.onMeterDataArrived(this);
+		return reading;
 	}
 
 	/**
 	 * Parse alarm data from response
 	 * 
 	 * @param tag
-	 * @param alarmData
+	 * @param frame
 	 * @throws IOException
 	 */
-	private void parseAlarmData(int dataTag, byte[] alarmData) throws IOException {
-		byte[] tag = LittleBitConverter.GetBytes(dataTag);
-		long alarmTime = LittleBitConverter.ToUInt32(alarmData, 0);
+	private void parseAlarmData(int dataTag, DLT645Frame frame) throws IOException {
+		long alarmTime = frame.uint32(0);
 
-		switch (tag[3]) {
+		switch ((byte) (dataTag >> 24)) {
 		case 0x66:
-			double overcurrent = dlt645.BCD2Double(alarmData, 4, 4, 3);
+			double overcurrent = frame.bcdField(4, 4, 3);
 			this.evtListener.onAlarmOverCurrent(alarmTime, overcurrent);
 			break;
 		case 0x67:
-			double overpower = dlt645.BCD2Double(alarmData, 4, 4, 2);
+			double overpower = frame.bcdField(4, 4, 2);
 			this.evtListener.onAlarmOverPower(alarmTime, overpower);
 			break;
 		case 0x68:
-			double overvoltage = dlt645.BCD2Double(alarmData, 4, 4, 2);
+			double overvoltage = frame.bcdField(4, 4, 2);
 			this.evtListener.onAlarmOverVoltage(alarmTime, overvoltage);
 			break;
 		case 0x69:
-			double undervoltage = dlt645.BCD2Double(alarmData, 4, 4, 2);
+			double undervoltage = frame.bcdField(4, 4, 2);
 			this.evtListener.onAlarmUnderVoltage(alarmTime, undervoltage);
 			break;
 		case 0x6A:
-			double remaining = dlt645.BCD2Double(alarmData, 4, 4, 2);
+			double remaining = frame.bcdField(4, 4, 2);
 			this.evtListener.onAlarmLowPower(alarmTime, remaining);
 			break;
 		case 0x6B:
-			double remaining2 = dlt645.BCD2Double(alarmData, 4, 4, 2);
+			double remaining2 = frame.bcdField(4, 4, 2);
 			this.evtListener.onAlarmOverDraft(alarmTime, remaining2);
 			break;
 		case 0x6C:
-			int devError = (int) LittleBitConverter.ToUInt32(alarmData, 4);
+			int devError = (int) frame.uint32(4);
 			this.evtListener.onAlarmDeviceError(devError);
 			break;
 		case 0x6D:
-			int valveState = alarmData[0];
+			int valveState = frame.valueByte(0);
 			this.evtListener.onValveStateChange(valveState);
 			break;
 		case 0x6F:
-			int tmpCount = alarmData[0];
+			int tmpCount = frame.valueByte(0);
 			this.evtListener.onTempPowerSupplyCountUpdate(tmpCount);
 			break;
 		}
@@ -0,0 +1,69 @@
+package tijos.framework.sensor.dlt645;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Table driven BCD decoding of little endian DLT645 fields.
+ */
+public class DLT645BCDTest {
+
+	@Test
+	public void decodesLittleEndianDigits() {
+		byte[] input = { 0x78, 0x56, 0x34, 0x12 };
+
+		assertEquals(12345678L, DLT645BCD.decode(input, 0, 4));
+		assertEquals(5678L, DLT645BCD.decode(input, 0, 2));
+		assertEquals(3456L, DLT645BCD.decode(input, 1, 2));
+		assertEquals(0L, DLT645BCD.decode(input, 0, 0));
+	}
+
+	@Test
+	public void rejectsInvalidFields() {
+		assertEquals(DLT645BCD.INVALID, DLT645BCD.decode(new byte[] { 0x1A }, 0, 1));
+		assertEquals(DLT645BCD.INVALID, DLT645BCD.decode(new byte[] { (byte) 0xA1 }, 0, 1));
+		assertEquals(DLT645BCD.INVALID, DLT645BCD.decode(new byte[2], 1, 2));
+		assertEquals(DLT645BCD.INVALID, DLT645BCD.decode(new byte[10], 0, 10));
+		assertTrue(Double.isNaN(DLT645BCD.toDouble(DLT645BCD.INVALID, 2)));
+	}
+
+	@Test
+	public void decodesSignBit() {
+		assertEquals(-1234L, DLT645BCD.decodeSigned(new byte[] { 0x34, (byte) 0x92 }, 0, 2));
+		assertEquals(1234L, DLT645BCD.decodeSigned(new byte[] { 0x34, 0x12 }, 0, 2));
+		assertEquals(DLT645BCD.INVALID, DLT645BCD.decodeSigned(new byte[] { 0x34, (byte) 0x9A }, 0, 2));
+		assertEquals(DLT645BCD.INVALID, DLT645BCD.decodeSigned(new byte[1], 0, 0));
+	}
+
+	@Test
+	public void frameFieldsMatchRawFields() {
+		byte[] value = { 0x34, (byte) 0x92, 0x1A, 0x01 };
+		byte[] data = { 0x00, 0x00, 0x03, 0x02, 0x34, (byte) 0x92, 0x1A, 0x01 };
+		byte[] address = { 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+		byte[] raw = DLT645Simulator.encodeFrame(address, 0x91, data, data.length);
+		DLT645Frame frame = new DLT645Frame().wrap(raw, 0, raw.length);
+
+		for (int start = 0; start < value.length; start++) {
+			for (int len = 0; start + len <= value.length + 1; len++) {
+				long expected = start + len > value.length ? DLT645BCD.INVALID : DLT645BCD.decode(value, start, len);
+				assertEquals(expected, frame.bcdValue(start, len));
+
+				expected = start + len > value.length ? DLT645BCD.INVALID
+						: DLT645BCD.decodeSigned(value, start, len);
+				assertEquals(expected, frame.bcdSignedValue(start, len));
+			}
+		}
+		assertEquals(-1234L, frame.bcdSignedValue(0, 2));
+	}
+
+	@Test
+	public void scalesToDouble() {
+		byte[] input = { (byte) 0x80, 0x20, 0x02, 0x00 };
+
+		assertEquals(220.80, DLT645BCD.toDouble(DLT645BCD.decode(input, 0, 4), 2), 1e-9);
+		assertEquals(TiDLT645.BCD2Double(input, 0, 4, 2), DLT645BCD.toDouble(DLT645BCD.decode(input, 0, 4), 2),
+				1e-9);
+	}
+}
@@ -0,0 +1,147 @@
+package tijos.framework.sensor.dlt645;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/**
+ * Lane order, bus ownership and waiting time statistics of the bus arbiter.
+ */
+public class DLT645BusArbiterTest {
+
+	private static final int CONTROL = TiDLT645.DLT645_LANE_CONTROL;
+	private static final int INTERACTIVE = TiDLT645.DLT645_LANE_INTERACTIVE;
+	private static final int POLLING = TiDLT645.DLT645_LANE_POLLING;
+
+	private static DLT645Request request(int lane) {
+		DLT645Request request = new DLT645Request();
+		request.prepare(new byte[6], 0x11, 0, new byte[0], 100);
+		request.lane = lane;
+		return request;
+	}
+
+	@Test
+	public void pollsHighestLaneFirst() {
+		DLT645BusArbiter arbiter = new DLT645BusArbiter(new DLT645Simulator());
+		DLT645Request polling = request(POLLING);
+		DLT645Request interactive1 = request(INTERACTIVE);
+		DLT645Request interactive2 = request(INTERACTIVE);
+		DLT645Request control = request(CONTROL);
+
+		arbiter.offer(polling);
+		arbiter.offer(interactive1);
+		arbiter.offer(interactive2);
+		arbiter.offer(control);
+		assertEquals(2, arbiter.getQueueLength(INTERACTIVE));
+
+		assertSame(control, arbiter.poll());
+		assertSame(interactive1, arbiter.poll());
+		assertSame(interactive2, arbiter.poll());
+		assertSame(polling, arbiter.poll());
+		assertNull(arbiter.poll());
+		assertFalse(arbiter.isPending());
+
+		assertEquals(1, arbiter.getFrameCount(CONTROL));
+		assertEquals(2, arbiter.getFrameCount(INTERACTIVE));
+		assertEquals(1, arbiter.getFrameCount(POLLING));
+	}
+
+	@Test
+	public void recordsWaitingTime() {
+		DLT645BusArbiter arbiter = new DLT645BusArbiter(new DLT645Simulator());
+		long now = System.currentTimeMillis();
+
+		DLT645Request first = request(POLLING);
+		first.queuedTime = now - 100;
+		DLT645Request second = request(POLLING);
+		second.queuedTime = now - 300;
+		arbiter.offer(first);
+		arbiter.offer(second);
+		arbiter.poll();
+		arbiter.poll();
+
+		assertTrue(arbiter.getMeanWait(POLLING) >= 200);
+		assertTrue(arbiter.getMaxWait(POLLING) >= 300);
+		assertEquals(0, arbiter.getMeanWait(CONTROL), 0);
+
+		arbiter.resetStatistics();
+		assertEquals(0, arbiter.getFrameCount(POLLING));
+		assertEquals(0, arbiter.getMaxWait(POLLING));
+	}
+
+	@Test
+	public void ownerKeepsLowerLanesOff() throws IOException {
+		DLT645BusArbiter arbiter = new DLT645BusArbiter(new DLT645Simulator());
+		arbiter.acquire(INTERACTIVE);
+
+		DLT645Request polling = request(POLLING);
+		DLT645Request queued = request(INTERACTIVE);
+		DLT645Request owned = request(INTERACTIVE);
+		owned.owned = true;
+		DLT645Request control = request(CONTROL);
+		arbiter.offer(polling);
+		arbiter.offer(queued);
+		arbiter.offer(owned);
+		arbiter.offer(control);
+
+		// the lanes above and the request of the owner only
+		assertSame(control, arbiter.poll());
+		assertSame(owned, arbiter.poll());
+		assertNull(arbiter.poll());
+		assertFalse(arbiter.isPending());
+
+		arbiter.release();
+		assertTrue(arbiter.isPending());
+		assertSame(queued, arbiter.poll());
+		assertSame(polling, arbiter.poll());
+	}
+
+	@Test(timeout = 5000)
+	public void handsBusToHighestLane() throws Exception {
+		final DLT645BusArbiter arbiter = new DLT645BusArbiter(new DLT645Simulator());
+		final ArrayList<Integer> order = new ArrayList<Integer>();
+		arbiter.acquire(INTERACTIVE);
+
+		Thread[] callers = new Thread[3];
+		int[] lanes = { POLLING, INTERACTIVE, CONTROL };
+		for (int i = 0; i < callers.length; i++) {
+			final int lane = lanes[i];
+			callers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						arbiter.acquire(lane);
+						synchronized (order) {
+							order.add(Integer.valueOf(lane));
+						}
+						arbiter.release();
+					} catch (IOException e) {
+						// order stays incomplete
+					}
+				}
+			};
+			callers[i].start();
+
+			while (arbiter.getQueueLength(lane) == 0) {
+				Thread.sleep(1);
+			}
+		}
+
+		arbiter.release();
+		for (int i = 0; i < callers.length; i++) {
+			callers[i].join();
+		}
+
+		assertEquals(3, order.size());
+		assertEquals(CONTROL, order.get(0).intValue());
+		assertEquals(INTERACTIVE, order.get(1).intValue());
+		assertEquals(POLLING, order.get(2).intValue());
+	}
+}
@@ -0,0 +1,128 @@
+package tijos.framework.sensor.dlt645;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Identical reads coalescing across the bus lanes on a simulated meter.
+ */
+public class DLT645CoalescingTest {
+
+	private static final byte[] ADDRESS = { 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+
+	private static final int VOLTAGE_A = TiDLT645.DLT645_TAG_GRID_PHASE_VOLTAGE_A;
+
+	private static final byte[] VALUE = { 0x01, 0x22 };
+
+	/**
+	 * Read of a lane on its own thread
+	 */
+	static class Read extends Thread {
+		final TiDLT645 dlt645;
+		final int lane;
+
+		byte[] data;
+		IOException error;
+
+		Read(TiDLT645 dlt645, int lane) {
+			this.dlt645 = dlt645;
+			this.lane = lane;
+		}
+
+		@Override
+		public void run() {
+			try {
+				data = dlt645.readMeterData(ADDRESS, VOLTAGE_A, lane);
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+	}
+
+	/**
+	 * Start a read of the first lane, then one of the second lane once the first
+	 * request reached the meter
+	 *
+	 * @return number of requests the meter got
+	 */
+	private static int readBoth(TiDLT645 dlt645, DLT645Simulator simulator, int first, int second)
+			throws InterruptedException {
+		Read pending = new Read(dlt645, first);
+		pending.start();
+		while (simulator.getRequestCount() == 0) {
+			Thread.sleep(1);
+		}
+
+		Read joining = new Read(dlt645, second);
+		joining.start();
+
+		pending.join();
+		joining.join();
+		assertArrayEquals(VALUE, pending.data);
+		assertArrayEquals(VALUE, joining.data);
+		return simulator.getRequestCount();
+	}
+
+	private static DLT645Simulator meter() throws IOException {
+		DLT645Simulator simulator = new DLT645Simulator();
+		simulator.addMeter(ADDRESS);
+		simulator.setValue(ADDRESS, VOLTAGE_A, VALUE);
+		simulator.setLatency(200);
+		return simulator;
+	}
+
+	@Test(timeout = 5000)
+	public void joinsReadOfHigherLane() throws Exception {
+		DLT645Simulator simulator = meter();
+		TiDLT645 dlt645 = new TiDLT645(simulator);
+
+		assertEquals(1, readBoth(dlt645, simulator, TiDLT645.DLT645_LANE_INTERACTIVE, TiDLT645.DLT645_LANE_POLLING));
+		assertEquals(1, dlt645.getCoalescedReadCount());
+	}
+
+	@Test(timeout = 5000)
+	public void joinsReadOfSameLane() throws Exception {
+		DLT645Simulator simulator = meter();
+		TiDLT645 dlt645 = new TiDLT645(simulator);
+
+		assertEquals(1, readBoth(dlt645, simulator, TiDLT645.DLT645_LANE_POLLING, TiDLT645.DLT645_LANE_POLLING));
+		assertEquals(1, dlt645.getCoalescedReadCount());
+	}
+
+	@Test(timeout = 5000)
+	public void skipsReadOfLowerLane() throws Exception {
+		DLT645Simulator simulator = meter();
+		TiDLT645 dlt645 = new TiDLT645(simulator);
+
+		assertEquals(2, readBoth(dlt645, simulator, TiDLT645.DLT645_LANE_POLLING, TiDLT645.DLT645_LANE_CONTROL));
+		assertEquals(0, dlt645.getCoalescedReadCount());
+	}
+
+	@Test(timeout = 5000)
+	public void ownerSendsItsOwnRead() throws Exception {
+		DLT645Simulator simulator = meter();
+		TiDLT645 dlt645 = new TiDLT645(simulator);
+		DLT645BusArbiter arbiter = dlt645.getBusArbiter();
+
+		// hold the bus as a stream listener does while another read is pending
+		arbiter.acquire(TiDLT645.DLT645_LANE_POLLING);
+		Read pending = new Read(dlt645, TiDLT645.DLT645_LANE_POLLING);
+		try {
+			pending.start();
+			Thread.sleep(100);
+
+			assertArrayEquals(VALUE, dlt645.readMeterData(ADDRESS, VOLTAGE_A, TiDLT645.DLT645_LANE_POLLING));
+		} finally {
+			arbiter.release();
+		}
+
+		pending.join();
+		assertArrayEquals(VALUE, pending.data);
+		assertEquals(2, simulator.getRequestCount());
+		assertEquals(0, dlt645.getCoalescedReadCount());
+	}
+}
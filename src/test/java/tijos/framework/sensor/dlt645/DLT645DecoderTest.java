@@ -0,0 +1,158 @@
+package tijos.framework.sensor.dlt645;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Frame decoder fed with frames of the simulated meters, split and mixed with
+ * garbage as they arrive from the bus.
+ */
+public class DLT645DecoderTest {
+
+	private static final byte[] ADDRESS = { 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+
+	private static final int VOLTAGE_A = TiDLT645.DLT645_TAG_GRID_PHASE_VOLTAGE_A;
+
+	private static byte[] reply(int dataTag, byte[] value) {
+		byte[] data = new byte[4 + value.length];
+		for (int i = 0; i < 4; i++) {
+			data[i] = (byte) (dataTag >> (i * 8));
+		}
+		System.arraycopy(value, 0, data, 4, value.length);
+		return DLT645Simulator.encodeFrame(ADDRESS, 0x91, data, data.length);
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int len = 0;
+		for (byte[] part : parts) {
+			len += part.length;
+		}
+
+		byte[] all = new byte[len];
+		int pos = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, all, pos, part.length);
+			pos += part.length;
+		}
+		return all;
+	}
+
+	/**
+	 * Feed the bytes in chunks and count the frames of the tag
+	 */
+	private static int feed(DLT645Decoder decoder, byte[] bytes, int chunk, int dataTag) {
+		int frames = 0;
+		int pos = 0;
+		while (pos < bytes.length) {
+			int end = Math.min(bytes.length, pos + chunk);
+			while (pos < end) {
+				pos += decoder.update(bytes, pos, end - pos);
+				if (decoder.isFrameReady()) {
+					assertEquals(0x91, decoder.getControlCode());
+					if (decoder.getDataTag() == dataTag) {
+						frames++;
+					}
+					decoder.release();
+				}
+			}
+		}
+		return frames;
+	}
+
+	@Test
+	public void decodesFrameSplitInSingleBytes() {
+		DLT645Decoder decoder = new DLT645Decoder();
+		byte[] frame = reply(VOLTAGE_A, new byte[] { 0x01, 0x22 });
+
+		assertEquals(1, feed(decoder, concat(new byte[] { (byte) 0xFE, (byte) 0xFE }, frame), 1, VOLTAGE_A));
+		assertEquals(0, decoder.getErrorCount());
+		assertEquals(0, decoder.getPendingLength());
+	}
+
+	@Test
+	public void resyncsAfterGarbage() {
+		DLT645Decoder decoder = new DLT645Decoder();
+		byte[] frame = reply(VOLTAGE_A, new byte[] { 0x01, 0x22 });
+
+		// a false start byte, a truncated frame and a frame with a bad checksum
+		byte[] corrupt = frame.clone();
+		corrupt[corrupt.length - 2] ^= 0x01;
+		byte[] truncated = new byte[6];
+		System.arraycopy(frame, 0, truncated, 0, truncated.length);
+		byte[] garbage = { 0x00, 0x68, 0x12, (byte) 0xFF, 0x16 };
+
+		byte[] bytes = concat(garbage, frame, truncated, corrupt, garbage, frame);
+		for (int chunk = 1; chunk <= bytes.length; chunk++) {
+			decoder.reset();
+			assertEquals("chunk " + chunk, 2, feed(decoder, bytes, chunk, VOLTAGE_A));
+		}
+		assertTrue(decoder.getErrorCount() > 0);
+	}
+
+	@Test
+	public void recoversFramesBehindBrokenLength() {
+		DLT645Decoder decoder = new DLT645Decoder();
+		byte[] frame = reply(VOLTAGE_A, new byte[] { 0x01, 0x22 });
+
+		// the start byte of the next frame is taken as the data length
+		byte[] truncated = new byte[9];
+		System.arraycopy(frame, 0, truncated, 0, truncated.length);
+
+		byte[] padding = new byte[DLT645Decoder.MAX_FRAME_LEN];
+		for (int i = 0; i < padding.length; i++) {
+			padding[i] = (byte) 0xFE;
+		}
+
+		assertEquals(1, feed(decoder, concat(truncated, frame, padding), 7, VOLTAGE_A));
+		assertTrue(decoder.getErrorCount() > 0);
+	}
+
+	@Test
+	public void keepsBytesAfterFrame() {
+		DLT645Decoder decoder = new DLT645Decoder();
+		byte[] first = reply(VOLTAGE_A, new byte[] { 0x01, 0x22 });
+		byte[] second = reply(TiDLT645.DLT645_TAG_GRID_PHASE_VOLTAGE_B, new byte[] { 0x02, 0x22 });
+		byte[] bytes = concat(first, second);
+
+		int used = decoder.update(bytes, 0, bytes.length);
+		assertEquals(first.length, used);
+		assertTrue(decoder.isFrameReady());
+
+		used += decoder.update(bytes, used, bytes.length - used);
+		assertEquals(bytes.length, used);
+		assertTrue(decoder.isFrameReady());
+		assertEquals(TiDLT645.DLT645_TAG_GRID_PHASE_VOLTAGE_B, decoder.getDataTag());
+
+		decoder.release();
+		assertFalse(decoder.isFrameReady());
+	}
+
+	@Test
+	public void packsAddressAsAddressKey() {
+		byte[] frame = reply(VOLTAGE_A, new byte[] { 0x01, 0x22 });
+		DLT645Frame view = new DLT645Frame().wrap(frame, 0, frame.length);
+
+		byte[] address = new byte[6];
+		view.getAddress(address, 0);
+		assertArrayEquals(ADDRESS, address);
+		assertEquals(0x112233445566L, view.address());
+		assertEquals(DLT645Frame.addressKey(ADDRESS), view.address());
+	}
+
+	@Test
+	public void decodesSimulatedReply() throws IOException {
+		DLT645Simulator simulator = new DLT645Simulator();
+		simulator.addMeter(ADDRESS);
+		simulator.setValue(ADDRESS, VOLTAGE_A, new byte[] { 0x01, 0x22 });
+
+		TiDLT645 dlt645 = new TiDLT645(simulator);
+		assertArrayEquals(new byte[] { 0x01, 0x22 }, dlt645.readMeterData(ADDRESS, VOLTAGE_A));
+		assertEquals(220.1, dlt645.readMeterValue(ADDRESS, VOLTAGE_A), 0.001);
+	}
+}
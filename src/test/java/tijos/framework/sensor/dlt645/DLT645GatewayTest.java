@@ -0,0 +1,131 @@
+package tijos.framework.sensor.dlt645;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Gateway serving loopback clients from a simulated meter.
+ */
+public class DLT645GatewayTest {
+
+	private static final byte[] ADDRESS = { 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+
+	private static final int READ_DATA = 0x11; // DLT645_PKT_TYPE_READ_DATA
+	private static final int READ_REPLY = 0x91;
+
+	private static final int VOLTAGE_A = TiDLT645.DLT645_TAG_GRID_PHASE_VOLTAGE_A;
+
+	private DLT645Simulator simulator;
+	private TiDLT645 dlt645;
+	private DLT645Gateway gateway;
+
+	@Before
+	public void startGateway() throws IOException {
+		simulator = new DLT645Simulator();
+		simulator.addMeter(ADDRESS);
+		for (int i = 0; i < 8; i++) {
+			simulator.setValue(ADDRESS, tag(i), new byte[] { (byte) i, 0x22 });
+		}
+
+		// a transaction stays on the bus while the other clients send
+		simulator.setLatency(200);
+
+		dlt645 = new TiDLT645(simulator);
+		dlt645.start();
+
+		gateway = new DLT645Gateway(dlt645, 0);
+		gateway.start();
+	}
+
+	@After
+	public void closeGateway() throws IOException {
+		gateway.close();
+		dlt645.close();
+	}
+
+	@Test(timeout = 5000)
+	public void mergesIdenticalReads() throws Exception {
+		SocketChannel[] clients = new SocketChannel[8];
+		for (int i = 0; i < clients.length; i++) {
+			clients[i] = connect();
+		}
+
+		byte[] request = dlt645.createSendPkt(ADDRESS, READ_DATA, VOLTAGE_A);
+		for (int i = 0; i < clients.length; i++) {
+			clients[i].write(ByteBuffer.wrap(request));
+		}
+
+		for (int i = 0; i < clients.length; i++) {
+			assertEquals(READ_REPLY, readReply(clients[i]).getControlCode());
+			clients[i].close();
+		}
+
+		assertEquals(1, simulator.getRequestCount());
+		assertEquals(1, gateway.getTransactionCount());
+		assertEquals(clients.length - 1, gateway.getMergedCount());
+	}
+
+	@Test(timeout = 5000)
+	public void disconnectDoesNotStallOthers() throws Exception {
+		SocketChannel leaving = connect();
+		SocketChannel staying = connect();
+
+		// the leaving client has one read on the bus and the rest queued
+		for (int i = 1; i < 8; i++) {
+			leaving.write(ByteBuffer.wrap(dlt645.createSendPkt(ADDRESS, READ_DATA, tag(i))));
+		}
+		while (simulator.getRequestCount() == 0) {
+			Thread.sleep(1);
+		}
+
+		staying.write(ByteBuffer.wrap(dlt645.createSendPkt(ADDRESS, READ_DATA, tag(0))));
+		leaving.close();
+
+		DLT645Decoder reply = readReply(staying);
+		assertEquals(READ_REPLY, reply.getControlCode());
+		assertEquals(tag(0), reply.getDataTag());
+
+		// served again right away
+		staying.write(ByteBuffer.wrap(dlt645.createSendPkt(ADDRESS, READ_DATA, VOLTAGE_A)));
+		assertEquals(VOLTAGE_A, readReply(staying).getDataTag());
+		staying.close();
+
+		// the read on the bus and the two for the staying client only
+		assertEquals(3, simulator.getRequestCount());
+	}
+
+	private static int tag(int i) {
+		return VOLTAGE_A + (i << 8);
+	}
+
+	private SocketChannel connect() throws IOException {
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", gateway.getPort()));
+		channel.socket().setTcpNoDelay(true);
+		return channel;
+	}
+
+	/**
+	 * Read the next reply frame of the connection
+	 */
+	private static DLT645Decoder readReply(SocketChannel channel) throws IOException {
+		DLT645Decoder decoder = new DLT645Decoder();
+		ByteBuffer rx = ByteBuffer.allocate(1);
+		while (!decoder.isFrameReady()) {
+			rx.clear();
+			if (channel.read(rx) < 0)
+				throw new EOFException("connection closed");
+
+			decoder.update(rx.array(), 0, 1);
+		}
+		return decoder;
+	}
+}
@@ -0,0 +1,87 @@
+package tijos.framework.sensor.dlt645;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Health of the meters kept by address, and async requests marking a dead
+ * meter unhealthy.
+ */
+public class DLT645MeterHealthTest {
+
+	private static final byte[] ADDRESS = { 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+
+	private static byte[] address(int n) {
+		return new byte[] { 0x11, 0x22, 0x33, 0x44, (byte) (n >> 8), (byte) n };
+	}
+
+	@Test
+	public void mapsManyAddresses() {
+		DLT645AddressMap<Integer> map = new DLT645AddressMap<Integer>(2);
+		for (int n = 0; n < 1000; n++) {
+			map.put(DLT645Frame.addressKey(address(n)), Integer.valueOf(n));
+		}
+		assertEquals(1000, map.size());
+
+		for (int n = 0; n < 1000; n++) {
+			assertEquals(n, map.get(DLT645Frame.addressKey(address(n))).intValue());
+		}
+		assertNull(map.get(DLT645Frame.addressKey(address(1000))));
+
+		Integer replaced = Integer.valueOf(-1);
+		map.put(DLT645Frame.addressKey(address(7)), replaced);
+		assertSame(replaced, map.get(DLT645Frame.addressKey(address(7))));
+		assertEquals(1000, map.size());
+	}
+
+	@Test
+	public void keepsMetersApart() {
+		DLT645MeterHealth health = new DLT645MeterHealth(500);
+		health.setUnhealthyPolicy(2, 10000, 10000);
+
+		for (int n = 0; n < 100; n++) {
+			health.replied(address(n), n);
+		}
+		health.failed(address(5));
+		health.failed(address(5));
+
+		assertFalse(health.isHealthy(address(5)));
+		assertTrue(health.isHealthy(address(6)));
+		assertEquals(42, health.getMeanLatency(address(42)));
+		assertEquals(-1, health.getMeanLatency(address(100)));
+	}
+
+	@Test(timeout = 5000)
+	public void asyncTimeoutsMarkMeterUnhealthy() throws IOException {
+		// no meter at the address replies
+		DLT645Simulator simulator = new DLT645Simulator();
+		TiDLT645 dlt645 = new TiDLT645(simulator);
+		DLT645MeterHealth health = dlt645.getMeterHealth();
+		health.setUnhealthyPolicy(2, 10000, 10000);
+
+		dlt645.start();
+		try {
+			for (int i = 0; i < 2; i++) {
+				try {
+					dlt645.readAsync(ADDRESS, TiDLT645.DLT645_TAG_GRID_PHASE_VOLTAGE_A, 20).getData();
+					fail();
+				} catch (DLT645TimeoutException e) {
+					// no reply
+				}
+			}
+		} finally {
+			dlt645.stop();
+		}
+
+		assertFalse(health.isHealthy(ADDRESS));
+		assertTrue(health.getRetryTime(ADDRESS) > System.currentTimeMillis());
+	}
+}
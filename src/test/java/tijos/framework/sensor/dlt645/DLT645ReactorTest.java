@@ -0,0 +1,87 @@
+package tijos.framework.sensor.dlt645;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Reactor serving a bus whose meter never answers.
+ */
+public class DLT645ReactorTest {
+
+	private static final byte[] ADDRESS = { 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+
+	private static final int VOLTAGE_A = TiDLT645.DLT645_TAG_GRID_PHASE_VOLTAGE_A;
+
+	private DLT645Reactor reactor;
+	private TiDLT645 dlt645;
+
+	@Before
+	public void startReactor() throws IOException {
+		Pipe up = Pipe.open();
+		Pipe down = Pipe.open();
+		dlt645 = new TiDLT645(new ChannelTransport(down.source(), up.sink()));
+
+		reactor = new DLT645Reactor();
+		reactor.register(dlt645);
+		reactor.start();
+	}
+
+	@After
+	public void closeReactor() throws IOException {
+		reactor.close();
+	}
+
+	@Test(timeout = 5000)
+	public void timesOutRequest() throws IOException {
+		DLT645Request request = dlt645.readAsync(ADDRESS, VOLTAGE_A, 100);
+		try {
+			request.getData();
+			fail();
+		} catch (DLT645TimeoutException e) {
+			// no reply
+		}
+		assertTrue(request.isDone());
+	}
+
+	@Test(timeout = 5000)
+	public void failsRequestsWhileStopped() throws IOException {
+		// sent or queued, the reply timeout is far away
+		DLT645Request sent = dlt645.readAsync(ADDRESS, VOLTAGE_A, 60000);
+		DLT645Request queued = dlt645.readAsync(ADDRESS, VOLTAGE_A, 60000);
+
+		reactor.stop();
+		assertFailed(sent);
+		assertFailed(queued);
+
+		try {
+			dlt645.readAsync(ADDRESS, VOLTAGE_A, 60000);
+			fail();
+		} catch (IOException e) {
+			assertFalse(e instanceof DLT645TimeoutException);
+		}
+		assertEquals(1, reactor.getLinkCount());
+
+		// the bus is served again
+		reactor.start();
+		timesOutRequest();
+	}
+
+	private static void assertFailed(DLT645Request request) {
+		assertTrue(request.isDone());
+		try {
+			request.getData();
+			fail();
+		} catch (IOException e) {
+			assertFalse(e instanceof DLT645TimeoutException);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package tijos.framework.sensor.dlt645;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Cache of encoded request frames keyed by address, function code and tag.
+ */
+public class DLT645RequestCacheTest {
+
+	private static final byte[] METER_A = { 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+	private static final byte[] METER_B = { 0x11, 0x22, 0x33, 0x44, 0x55, 0x67 };
+
+	private static final int READ_DATA = 0x11;
+
+	@Test
+	public void hitsOnSameKeyOnly() {
+		DLT645RequestCache cache = new DLT645RequestCache(16);
+		byte[] frame = new byte[] { 1, 2, 3 };
+
+		assertNull(cache.get(METER_A, READ_DATA, 0x02010100));
+		cache.put(METER_A, READ_DATA, 0x02010100, frame);
+
+		assertSame(frame, cache.get(METER_A, READ_DATA, 0x02010100));
+		assertNull(cache.get(METER_B, READ_DATA, 0x02010100));
+		assertNull(cache.get(METER_A, 0x12, 0x02010100));
+		assertNull(cache.get(METER_A, READ_DATA, 0x02010200));
+
+		assertEquals(1, cache.getHitCount());
+		assertEquals(4, cache.getMissCount());
+
+		cache.clear();
+		assertNull(cache.get(METER_A, READ_DATA, 0x02010100));
+	}
+
+	@Test
+	public void replacesFrameInSlot() {
+		// one slot, every frame replaces the previous one
+		DLT645RequestCache cache = new DLT645RequestCache(1);
+		cache.put(METER_A, READ_DATA, 0x02010100, new byte[1]);
+		cache.put(METER_B, READ_DATA, 0x02010100, new byte[2]);
+
+		assertNull(cache.get(METER_A, READ_DATA, 0x02010100));
+		assertEquals(2, cache.get(METER_B, READ_DATA, 0x02010100).length);
+	}
+
+	@Test
+	public void reusesEncodedFrames() throws IOException {
+		DLT645Simulator simulator = new DLT645Simulator();
+		simulator.addMeter(METER_A);
+		TiDLT645 dlt645 = new TiDLT645(simulator);
+
+		byte[] first = dlt645.createSendPkt(METER_A, READ_DATA, 0x02010100);
+		assertSame(first, dlt645.createSendPkt(METER_A, READ_DATA, 0x02010100));
+
+		byte[] other = dlt645.createSendPkt(METER_B, READ_DATA, 0x02010100);
+		assertNotSame(first, other);
+		assertArrayEquals(METER_B, Arrays.copyOfRange(other, 5, 11));
+	}
+}
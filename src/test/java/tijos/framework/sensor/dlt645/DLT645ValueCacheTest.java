@@ -0,0 +1,84 @@
+package tijos.framework.sensor.dlt645;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Value cache of a bus of simulated meters.
+ */
+public class DLT645ValueCacheTest {
+
+	private static final byte[] ADDRESS = { 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+
+	private static final int VOLTAGE_A = TiDLT645.DLT645_TAG_GRID_PHASE_VOLTAGE_A;
+
+	private static final byte[] VALUE = { 0x01, 0x22 };
+
+	private DLT645Simulator simulator;
+	private TiDLT645 dlt645;
+
+	private void startBus() throws IOException {
+		simulator = new DLT645Simulator();
+		simulator.addMeter(ADDRESS);
+		simulator.setValue(ADDRESS, VOLTAGE_A, VALUE);
+
+		dlt645 = new TiDLT645(simulator);
+		dlt645.getValueCache().setDefaultTtl(60000);
+	}
+
+	@Test
+	public void servesCopies() throws IOException {
+		startBus();
+
+		byte[] first = dlt645.readMeterDataCached(ADDRESS, VOLTAGE_A);
+		assertArrayEquals(VALUE, first);
+		first[0] = 0;
+
+		byte[] second = dlt645.readMeterDataCached(ADDRESS, VOLTAGE_A);
+		assertArrayEquals(VALUE, second);
+		assertNotSame(first, second);
+		assertNotSame(second, dlt645.readMeterDataCached(ADDRESS, VOLTAGE_A));
+
+		assertEquals(1, simulator.getRequestCount());
+		assertEquals(2, dlt645.getValueCache().getHitCount());
+	}
+
+	@Test
+	public void invalidatesOnWrite() throws IOException {
+		startBus();
+
+		assertArrayEquals(VALUE, dlt645.readMeterDataCached(ADDRESS, VOLTAGE_A));
+		assertTrue(dlt645.getValueCache().getTimestamp(ADDRESS, VOLTAGE_A) != 0);
+
+		System.arraycopy(ADDRESS, 0, dlt645.MeterAddress, 0, ADDRESS.length);
+		byte[] written = { 0x02, 0x22 };
+		dlt645.writeMeterData(new byte[4], new byte[4], VOLTAGE_A, written);
+		assertEquals(0, dlt645.getValueCache().getTimestamp(ADDRESS, VOLTAGE_A));
+
+		assertArrayEquals(written, dlt645.readMeterDataCached(ADDRESS, VOLTAGE_A));
+		assertEquals(3, simulator.getRequestCount());
+		assertEquals(2, dlt645.getValueCache().getMissCount());
+	}
+
+	@Test
+	public void refreshesFromReplies() throws IOException {
+		startBus();
+
+		assertArrayEquals(VALUE, dlt645.readMeterDataCached(ADDRESS, VOLTAGE_A));
+
+		byte[] changed = { 0x03, 0x22 };
+		simulator.setValue(ADDRESS, VOLTAGE_A, changed);
+		assertArrayEquals(VALUE, dlt645.readMeterDataCached(ADDRESS, VOLTAGE_A));
+
+		// an uncached read updates the cache
+		assertArrayEquals(changed, dlt645.readMeterData(ADDRESS, VOLTAGE_A));
+		assertArrayEquals(changed, dlt645.readMeterDataCached(ADDRESS, VOLTAGE_A));
+		assertEquals(2, simulator.getRequestCount());
+	}
+}
@@ -0,0 +1,148 @@
+package tijos.framework.sensor.dlt645;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of the encode, decode and BCD conversion hot paths on recorded
+ * frames, without meter hardware. Run it from the Maven build with the
+ * allocation rate of each path:
+ *
+ * mvn -P benchmark test-compile exec:exec
+ *
+ * The benchmark profile passes -prof gc, other JMH options go in jmh.args.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TiDLT645Benchmark {
+
+	private static final int READ_DATA = 0x11; // DLT645_PKT_TYPE_READ_DATA
+	private static final int WRITE_DATA = 0x14; // DLT645_PKT_TYPE_WRITE_DATA
+
+	private static final int VOLTAGE_A = TiDLT645.DLT645_TAG_GRID_PHASE_VOLTAGE_A;
+
+	// recorded JoyMeter reply with leading bytes
+	private static final String JOYMETER_REPLY = "FEFEFEFE6866666666666668911F33335033650F9F6B33333333333333338733333343553533933933337538331516";
+
+	// phase A voltage reply 220.1V
+	private static final String VOLTAGE_REPLY = "686666666666666891063334343534552416";
+
+	private final byte[] address = new byte[] { 0x66, 0x66, 0x66, 0x66, 0x66, 0x66 };
+	private final byte[] password = new byte[] { 0x00, 0x00, 0x00, 0x02 };
+	private final byte[] operator = new byte[] { 0x00, 0x00, 0x00, 0x01 };
+	private final byte[] switchData = new byte[] { 0x01 };
+	private final byte[] bcd = new byte[] { (byte) 0x80, 0x20, 0x02, 0x00 };
+
+	private byte[] joyReply;
+	private byte[] voltageReply;
+
+	private TiDLT645 dlt645;
+	private DLT645Decoder decoder;
+	private DLT645Request request;
+
+	@Setup
+	public void setup() throws IOException {
+		joyReply = fromHex(JOYMETER_REPLY);
+		voltageReply = fromHex(VOLTAGE_REPLY);
+
+		// simulated meter without latency or baud rate pacing
+		DLT645Simulator simulator = new DLT645Simulator();
+		simulator.addMeter(address);
+		simulator.setValue(address, VOLTAGE_A, new byte[] { 0x01, 0x22 });
+
+		dlt645 = new TiDLT645(simulator);
+		System.arraycopy(address, 0, dlt645.MeterAddress, 0, address.length);
+
+		decoder = new DLT645Decoder();
+		request = new DLT645Request();
+	}
+
+	@Benchmark
+	public byte[] createSendPkt() throws IOException {
+		return dlt645.createSendPkt(address, READ_DATA, VOLTAGE_A);
+	}
+
+	@Benchmark
+	public byte[] createWriteRequest() {
+		return dlt645.createWriteRequest(address, WRITE_DATA, password, operator, 0x0400050A, switchData);
+	}
+
+	@Benchmark
+	public byte[] decodeReply() throws IOException {
+		decoder.reset();
+		decoder.update(voltageReply, 0, voltageReply.length);
+		request.prepare(address, READ_DATA, VOLTAGE_A, null, 0);
+		request.setFrame(decoder);
+		return dlt645.decodeReply(request);
+	}
+
+	@Benchmark
+	public int frameAssembly1ByteReads() {
+		return feed(decoder, joyReply, 1);
+	}
+
+	@Benchmark
+	public int frameAssembly16ByteReads() {
+		return feed(decoder, joyReply, 16);
+	}
+
+	@Benchmark
+	public byte[] readMeterDataRoundTrip() throws IOException {
+		return dlt645.readMeterData(address, VOLTAGE_A);
+	}
+
+	@Benchmark
+	public double bcd2Double() {
+		return TiDLT645.BCD2Double(bcd, 0, 4, 2);
+	}
+
+	@Benchmark
+	public long bcdDecode() {
+		return DLT645BCD.decode(bcd, 0, 4);
+	}
+
+	/**
+	 * Feed the frame to the decoder in chunks as the UART delivers them
+	 *
+	 * @return number of frames decoded
+	 */
+	static int feed(DLT645Decoder decoder, byte[] frame, int chunk) {
+		int frames = 0;
+		int pos = 0;
+		while (pos < frame.length) {
+			int len = Math.min(chunk, frame.length - pos);
+			int end = pos + len;
+			while (pos < end) {
+				pos += decoder.update(frame, pos, end - pos);
+				if (decoder.isFrameReady()) {
+					decoder.release();
+					frames++;
+				}
+			}
+		}
+		return frames;
+	}
+
+	static byte[] fromHex(String hex) {
+		byte[] data = new byte[hex.length() / 2];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return data;
+	}
+}
@@ -12,17 +12,9 @@ public class TiDLT645Sample {
 	public static void main(String[] args) throws IOException {
 		System.out.println("Hello World!");
 
-		int[] All_Meter_Data = new int[] { TiDLT645.DLT645_TAG_FORWARD_ACTIVE_POWER,
-				TiDLT645.DLT645_TAG_BACKWARD_ACTIVE_POWER, TiDLT645.DLT645_TAG_INSTANT_ACTIVE_POWER,
-				TiDLT645.DLT645_TAG_GRID_PHASE_VOLTAGE_A, TiDLT645.DLT645_TAG_GRID_PHASE_VOLTAGE_B,
-				TiDLT645.DLT645_TAG_GRID_PHASE_VOLTAGE_C, TiDLT645.DLT645_TAG_GRID_PHASE_CURRENT_A,
-				TiDLT645.DLT645_TAG_GRID_PHASE_CURRENT_B, TiDLT645.DLT645_TAG_GRID_PHASE_CURRENT_C,
-				TiDLT645.DLT645_TAG_GRID_PHASE_POWER_A, TiDLT645.DLT645_TAG_GRID_PHASE_POWER_B,
-				TiDLT645.DLT645_TAG_GRID_PHASE_POWER_C, TiDLT645.DLT645_TAG_FORWARD_ACTIVE_POWER_1,
-				TiDLT645.DLT645_TAG_FORWARD_ACTIVE_POWER_2, TiDLT645.DLT645_TAG_FORWARD_ACTIVE_POWER_3,
-				TiDLT645.DLT645_TAG_FORWARD_ACTIVE_POWER_4, TiDLT645.DLT645_TAG_BACKWARD_ACTIVE_POWER_1,
-				TiDLT645.DLT645_TAG_BACKWARD_ACTIVE_POWER_2, TiDLT645.DLT645_TAG_BACKWARD_ACTIVE_POWER_3,
-				TiDLT645.DLT645_TAG_BACKWARD_ACTIVE_POWER_4 };
+		int[] All_Meter_Blocks = new int[] { TiDLT645.DLT645_TAG_FORWARD_ACTIVE_POWER_BLOCK,
+				TiDLT645.DLT645_TAG_BACKWARD_ACTIVE_POWER_BLOCK, TiDLT645.DLT645_TAG_GRID_PHASE_VOLTAGE_BLOCK,
+				TiDLT645.DLT645_TAG_GRID_PHASE_CURRENT_BLOCK, TiDLT645.DLT645_TAG_GRID_PHASE_POWER_BLOCK };
 
 		TiUART uart = TiUART.open(5);
 		uart.setWorkParameters(8, 1, TiUART.PARITY_EVEN, 2400);
@@ -31,17 +23,27 @@ public class TiDLT645Sample {
 		
 		dlt645.readMeterAddress();
 		
-		for(int tag:All_Meter_Data)
-		{
-			double reading = MeterReading_Get(dlt645, tag);
-			System.out.println("tag: " + tag + " reading: " + reading);
+		// one request per block instead of one per tag
+		DLT645TagRegistry registry = DLT645TagRegistry.getDefault();
+		int[] tags = new int[8];
+		double[] values = new double[8];
+		for (int i = 0; i < All_Meter_Blocks.length; i++) {
+			int count;
+			try {
+				count = dlt645.readMeterBlock(All_Meter_Blocks[i], tags, values);
+			} catch (IOException e) {
+				System.out.println("block: " + Integer.toHexString(All_Meter_Blocks[i]) + " failed");
+				continue;
+			}
+
+			for (int j = 0; j < count; j++) {
+				System.out.println("tag: " + Integer.toHexString(tags[j]) + " reading: " + values[j] + " "
+						+ registry.getUnit(tags[j]));
+			}
 		}
 	}
 
 	static double MeterReading_Get(TiDLT645 dlt645, int meterdata) throws IOException {
-		byte [] meterData = dlt645.readMeterData(meterdata); // read meter data
-		
-		double reading  = dlt645.BCD2Double(meterData, 2);
-		return reading;
+		return dlt645.readMeterValue(meterdata); // read meter data
 	}
 }
@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import tijos.framework.devicecenter.TiUART;
 import tijos.framework.sensor.joymeter.IJoyMeterEventListener;
+import tijos.framework.sensor.joymeter.JoyMeterReading;
 import tijos.framework.sensor.joymeter.TiJoyMeter;
 import tijos.framework.util.Delay;
 import tijos.framework.util.Formatter;
@@ -41,8 +42,8 @@ public class TiJoyMeterSample implements IJoyMeterEventListener {
 	}
 
 	@Override
-	public void onMeterDataArrived(TiJoyMeter meter) {
-		System.out.println(meter);
+	public void onMeterDataArrived(JoyMeterReading reading) {
+		System.out.println(reading);
 
 	}
 